@@ -0,0 +1,81 @@
+package a4;
+
+/**
+ * Binary-lifting jump tables over all nodes of a PhDTree. Row k of the table holds, for
+ * each node, its ancestor 2^k generations up (or the root, if there are fewer), so the
+ * common ancestor of two nodes is found in time logarithmic in the depth of the tree.
+ * An AncestorIndex describes the tree as it was when built; it does not follow inserts.
+ */
+final class AncestorIndex {
+    /** The modCount of the tree index when this was built. */
+    private final int modCount;
+
+    /** The tree index this was built from; it maps ids back to nodes. */
+    private final TreeIndex index;
+
+    /** The depth of each node, by id. */
+    private final int[] depth;
+
+    /**
+     * The jump tables. up[k][v] is the id of the ancestor 2^k generations above
+     * node v, or of the root if v has fewer ancestors than that.
+     */
+    private final int[][] up;
+
+    /** Creates: the jump tables for every node currently in index. */
+    AncestorIndex(TreeIndex index) {
+        this.index = index;
+        modCount = index.modCount();
+        int n = index.size();
+        depth = new int[n];
+        int[] parent = new int[n];
+        int maxDepth = 0;
+        for (int v = 0; v < n; v++) {
+            PhDTree node = index.node(v);
+            depth[v] = node.depth();
+            parent[v] = node.advisor() == null ? v : node.advisor().id();
+            maxDepth = Math.max(maxDepth, depth[v]);
+        }
+        int levels = 32 - Integer.numberOfLeadingZeros(Math.max(maxDepth, 1));
+        up = new int[levels][];
+        up[0] = parent;
+        for (int k = 1; k < levels; k++) {
+            int[] prev = up[k - 1];
+            int[] row = new int[n];
+            for (int v = 0; v < n; v++) {
+                row[v] = prev[prev[v]];
+            }
+            up[k] = row;
+        }
+    }
+
+    /** Returns the modCount of the tree index when this was built. */
+    int modCount() {
+        return modCount;
+    }
+
+    /**
+     * Returns the deepest node that is an ancestor of (or equal to) both a and b.
+     * Requires: a and b were in the tree when this index was built.
+     */
+    PhDTree commonAncestor(PhDTree a, PhDTree b) {
+        int u = a.id();
+        int v = b.id();
+        if (depth[u] < depth[v]) {
+            int t = u;
+            u = v;
+            v = t;
+        }
+        for (int diff = depth[u] - depth[v], k = 0; diff != 0; diff >>>= 1, k++) {
+            if ((diff & 1) != 0) u = up[k][u];
+        }
+        if (u == v) return index.node(u);
+        for (int k = up.length - 1; k >= 0; k--) {
+            if (up[k][u] != up[k][v]) {
+                u = up[k][u];
+                v = up[k][v];
+            }
+        }
+        return index.node(up[0][u]);
+    }
+}
@@ -0,0 +1,563 @@
+package a4;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks for PhDTree and its alternative representations, run from the command
+ * line as: java a4.Benchmark heap [nodes] | parallel [nodes]
+ *     | concurrent [nodes] [readers] | load port [clients] [commands] [window] [script]
+ *     | wal [inserts] [threads] [directory] | tail [rows] [directory]
+ * Each benchmark builds a synthetic genealogy and prints its measurements.
+ */
+public class Benchmark {
+    /**
+     * Effect: Print a usage message to standard error.
+     */
+    public static void usage() {
+        System.err.println("Usage: a4.Benchmark heap [nodes] | parallel [nodes]"
+                + " | concurrent [nodes] [readers]"
+                + " | load port [clients] [commands] [window] [script]"
+                + " | wal [inserts] [threads] [directory] | tail [rows] [directory]");
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            usage();
+            System.exit(1);
+        }
+        switch (args[0]) {
+            case "heap":
+                heap(intArg(args, 1, 1_000_000));
+                break;
+            case "parallel":
+                parallel(intArg(args, 1, 2_000_000));
+                break;
+            case "concurrent":
+                concurrent(intArg(args, 1, 200_000), intArg(args, 2, 4));
+                break;
+            case "load":
+                if (args.length < 2) {
+                    usage();
+                    System.exit(1);
+                }
+                try {
+                    load(intArg(args, 1, 0), intArg(args, 2, 100), intArg(args, 3, 10_000),
+                            intArg(args, 4, 1), args.length > 5 ? args[5] : null);
+                } catch (IOException | InterruptedException e) {
+                    System.err.println("Load test failed: " + e.getMessage());
+                    System.exit(1);
+                }
+                break;
+            case "wal":
+                try {
+                    wal(intArg(args, 1, 20_000), intArg(args, 2, 8), args.length > 3 ? args[3] : null);
+                } catch (IOException | InterruptedException e) {
+                    System.err.println("WAL benchmark failed: " + e.getMessage());
+                    System.exit(1);
+                }
+                break;
+            case "tail":
+                try {
+                    tail(intArg(args, 1, 100_000), args.length > 2 ? args[2] : null);
+                } catch (IOException e) {
+                    System.err.println("Tail benchmark failed: " + e.getMessage());
+                    System.exit(1);
+                }
+                break;
+            default:
+                usage();
+                System.exit(1);
+        }
+    }
+
+    /** Returns args[i] as an int, or dflt if there is no such argument. */
+    private static int intArg(String[] args, int i, int dflt) {
+        return i < args.length ? Integer.parseInt(args[i]) : dflt;
+    }
+
+    /** The shapes of synthetic genealogy that genealogy() can build. */
+    enum Shape {
+        /** Every node has fanout advisees until the nodes run out. */
+        BALANCED,
+        /** Chains of depth nodes, each hanging from the root. */
+        CHAIN,
+        /** Every node other than the root is an advisee of the root. */
+        STAR,
+        /** The advisor of each node is one of the (at most 1000) nodes added just before it. */
+        RANDOM
+    }
+
+    /** Returns the Professor that the synthetic genealogies give number i. */
+    static Professor person(int i) {
+        return new Professor("First" + i, "Last" + i);
+    }
+
+    /**
+     * Returns the number of the advisor of person i in a genealogy of the given shape,
+     * fan-out and chain depth, choosing at random from rnd where the shape does.
+     * Requires: i >= 1, fanout >= 1, depth >= 1.
+     */
+    static int advisorOf(Shape shape, int i, int fanout, int depth, Random rnd) {
+        switch (shape) {
+            case BALANCED:
+                return (i - 1) / fanout;
+            case CHAIN:
+                return (i - 1) % depth == 0 ? 0 : i - 1;
+            case STAR:
+                return 0;
+            default:
+                return i - 1 - rnd.nextInt(Math.min(i, 1000));
+        }
+    }
+
+    /**
+     * Returns a PhDTree of the given shape holding person(0) to person(n - 1), built
+     * by inserting them in order. fanout applies to BALANCED and depth to CHAIN.
+     * Requires: n >= 1, fanout >= 1, depth >= 1.
+     */
+    static PhDTree genealogy(Shape shape, int n, int fanout, int depth, long seed) {
+        Random rnd = new Random(seed);
+        Professor[] profs = new Professor[n];
+        profs[0] = person(0);
+        PhDTree tree = new PhDTree(profs[0], 1900);
+        for (int i = 1; i < n; i++) {
+            profs[i] = person(i);
+            tree.insert(profs[advisorOf(shape, i, fanout, depth, rnd)], profs[i], 1900 + i % 120);
+        }
+        return tree;
+    }
+
+    /**
+     * Returns a PhDTree with n nodes in which the advisor of each node is chosen at
+     * random among the (at most 1000) nodes added just before it.
+     */
+    static PhDTree randomTree(int n, long seed) {
+        return genealogy(Shape.RANDOM, n, 1, 1, seed);
+    }
+
+    /** Returns the number of bytes of heap in use, after collecting garbage. */
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+
+    /**
+     * Effect: print the heap used per node by a PhDTree with n nodes and by the
+     * CompactPhDTree made from it.
+     */
+    static void heap(int n) {
+        long base = usedHeap();
+        PhDTree tree = randomTree(n, 42);
+        long afterTree = usedHeap();
+        CompactPhDTree compact = CompactPhDTree.of(tree);
+        long afterCompact = usedHeap();
+        System.out.printf("nodes: %d%n", tree.size());
+        System.out.printf("PhDTree: %.1f bytes/node%n", (afterTree - base) / (double) n);
+        System.out.printf("CompactPhDTree, sharing the name strings: %.1f bytes/node%n",
+                (afterCompact - afterTree) / (double) compact.size());
+    }
+
+    /**
+     * Effect: print, for each number of threads from 1 to the number of processors,
+     * the time parallelSize(), parallelMaxDepth() and a parallelSearch that finds
+     * nothing take on a PhDTree with n nodes, and their speedup over one thread.
+     */
+    static void parallel(int n) {
+        PhDTree tree = randomTree(n, 42);
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("nodes: %d, processors: %d%n", tree.size(), cores);
+        System.out.println("threads\tms\tspeedup");
+        double single = 0;
+        for (int threads = 1; threads <= cores; threads++) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long best = Long.MAX_VALUE;
+            for (int rep = 0; rep < 10; rep++) {
+                long start = System.nanoTime();
+                int size = tree.parallelSize(pool);
+                int depth = tree.parallelMaxDepth(pool);
+                boolean found = tree.parallelSearch(t -> t.phdYear() < 0, pool).isPresent();
+                best = Math.min(best, System.nanoTime() - start);
+                if (size != tree.size() || depth != tree.maxDepth() || found) {
+                    throw new AssertionError("parallel result differs from sequential");
+                }
+            }
+            pool.shutdown();
+            if (threads == 1) single = best;
+            System.out.printf("%d\t%.1f\t%.2f%n", threads, best / 1e6, single / best);
+        }
+    }
+
+    /**
+     * Effect: stress ConcurrentPhDTree by inserting n nodes on one thread while the
+     * given number of reader threads query nodes already inserted, checking every
+     * answer against what was inserted, and that size() counts no node that
+     * contains() does not see yet. Print the throughput of both sides, then
+     * check the class invariant (when assertions are enabled).
+     * Throws an AssertionError if a reader sees a wrong answer.
+     */
+    static void concurrent(int n, int readers) {
+        Random rnd = new Random(42);
+        Professor[] profs = new Professor[n];
+        int[] advisor = new int[n];
+        for (int i = 0; i < n; i++) {
+            profs[i] = person(i);
+            advisor[i] = i == 0 ? -1 : advisorOf(Shape.RANDOM, i, 1, 1, rnd);
+        }
+        ConcurrentPhDTree tree = new ConcurrentPhDTree(profs[0], 1900);
+        AtomicInteger inserted = new AtomicInteger(1);
+        AtomicLong queries = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] threads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            long seed = r;
+            threads[r] = new Thread(() -> {
+                Random local = new Random(seed);
+                long count = 0;
+                int lastSize = 0;
+                try {
+                    while (inserted.get() < n && failure.get() == null) {
+                        int i = local.nextInt(inserted.get());
+                        int size = tree.size();
+                        check(size >= lastSize && size >= i + 1, "size went from "
+                                + lastSize + " to " + size);
+                        lastSize = size;
+                        check(tree.contains(profs[size - 1]), "size " + size
+                                + " counts a professor that contains does not see");
+                        if ((count & 1023) == 0) {
+                            check(tree.findTree(profs[i]).toString().startsWith(profs[i].toString()),
+                                    "wrong string form of " + profs[i]);
+                        }
+                        List<Professor> lineage = tree.findAcademicLineage(profs[i]);
+                        check(lineage.get(0).equals(profs[0])
+                                && lineage.get(lineage.size() - 1).equals(profs[i]),
+                                "wrong lineage of " + profs[i]);
+                        if (i > 0) {
+                            check(tree.findAdvisor(profs[i]).equals(profs[advisor[i]]),
+                                    "wrong advisor of " + profs[i]);
+                            check(lineage.get(lineage.size() - 2).equals(profs[advisor[i]]),
+                                    "lineage of " + profs[i] + " skips its advisor");
+                        }
+                        count += 3;
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                queries.addAndGet(count);
+            });
+            threads[r].start();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 1; i < n; i++) {
+            tree.insert(profs[advisor[i]], profs[i], 1900 + i % 120);
+            inserted.set(i + 1);
+        }
+        long nanos = System.nanoTime() - start;
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        check(tree.size() == n, "size " + tree.size() + " after " + n + " inserts");
+        System.out.printf("nodes: %d, readers: %d%n", n, readers);
+        System.out.printf("inserts: %.0f/s%n", (n - 1) / (nanos / 1e9));
+        System.out.printf("queries: %.0f/s%n", queries.get() / (nanos / 1e9));
+        boolean checked = false;
+        assert checked = tree.classInv();
+        System.out.println(checked ? "classInv: holds" : "classInv: not checked (run with -ea)");
+    }
+
+    /**
+     * Effect: measure WriteAheadLog in a new temporary directory in the directory named
+     * by parent (or the default one if parent is null). For each of the modes without
+     * and with group commit, make n - 1 inserts spread over the given number of threads,
+     * each inserting into its own part of the tree, then recover the tree from the log.
+     * Print the inserts per second, the number of times the log was forced, and the
+     * time recovery took to load the checkpoint and replay the inserts.
+     * Throws an IOException if the log cannot be written or read, and an AssertionError
+     * if the recovered tree differs from the one built.
+     */
+    static void wal(int n, int threads, String parent) throws IOException, InterruptedException {
+        Random rnd = new Random(42);
+        Professor[] profs = new Professor[n];
+        int[] advisor = new int[n];
+        for (int i = 0; i < n; i++) {
+            profs[i] = person(i);
+            // thread (i - 1) % threads inserts i, under a node it inserted before or the root
+            int earlier = i == 0 ? 0 : (i - 1) / threads;
+            advisor[i] = i == 0 ? -1
+                    : earlier == 0 ? 0 : i - threads * (1 + rnd.nextInt(Math.min(earlier, 1000)));
+        }
+        System.out.printf("inserts: %d, threads: %d%n", n - 1, threads);
+        System.out.println("mode	inserts/s	forces	recovery ms	replayed");
+        for (boolean group : new boolean[] {false, true}) {
+            Path dir = parent == null ? Files.createTempDirectory("a4-wal")
+                    : Files.createTempDirectory(Path.of(parent), "a4-wal");
+            try {
+                long nanos;
+                long forces;
+                PhDTree built;
+                try (WriteAheadLog wal = WriteAheadLog.create(dir.toString(),
+                        new PhDTree(profs[0], 1900), group, Integer.MAX_VALUE)) {
+                    AtomicReference<Throwable> failure = new AtomicReference<>();
+                    Thread[] workers = new Thread[threads];
+                    for (int t = 0; t < threads; t++) {
+                        int first = t + 1;
+                        workers[t] = new Thread(() -> {
+                            try {
+                                for (int i = first; i < n && failure.get() == null; i += threads) {
+                                    check(wal.insert(profs[advisor[i]], profs[i], 1900 + i % 120),
+                                            "insert of " + profs[i] + " refused");
+                                }
+                            } catch (Throwable e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        });
+                    }
+                    long start = System.nanoTime();
+                    for (Thread w : workers) w.start();
+                    for (Thread w : workers) w.join();
+                    nanos = System.nanoTime() - start;
+                    if (failure.get() != null) throw new AssertionError(failure.get());
+                    forces = wal.forces();
+                    built = wal.tree();
+                }
+                try (WriteAheadLog recovered = WriteAheadLog.open(dir.toString(), group,
+                        Integer.MAX_VALUE)) {
+                    PhDTree tree = recovered.tree();
+                    check(tree.size() == n && tree.maxDepth() == built.maxDepth(),
+                            "recovered " + tree.size() + " nodes of " + n);
+                    for (int i = 1; i < n; i++) {
+                        check(tree.findAdvisor(profs[i]).equals(profs[advisor[i]]),
+                                "wrong advisor of " + profs[i] + " after recovery");
+                    }
+                    System.out.printf("%s\t%.0f\t%d\t%.1f\t%d%n", group ? "group" : "single",
+                            (n - 1) / (nanos / 1e9), forces, recovered.recoveryNanos() / 1e6,
+                            recovered.replayed());
+                } catch (NotFound e) {
+                    throw new AssertionError("a node is missing after recovery", e);
+                }
+            } finally {
+                try (Stream<Path> files = Files.list(dir)) {
+                    for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+                }
+                Files.delete(dir);
+            }
+        }
+    }
+
+    /**
+     * Effect: check CsvTail on files in a new temporary directory in the directory
+     * named by parent (or the default one if parent is null). First, a file whose last
+     * line is cut short when the CsvTail is created must have that line read whole once
+     * the rest of it is appended. Then a genealogy of n rows, some of them before their
+     * advisor's, is appended in chunks of random length that mostly end inside a line,
+     * with an update after each. Print the rows per second that updates insert.
+     * Throws an IOException if a file cannot be written or read, and an AssertionError
+     * if a tree read by a CsvTail differs from the rows appended or a problem is reported.
+     */
+    static void tail(int n, String parent) throws IOException {
+        Path dir = parent == null ? Files.createTempDirectory("a4-tail")
+                : Files.createTempDirectory(Path.of(parent), "a4-tail");
+        try {
+            Path file = dir.resolve("cut.csv");
+            Files.writeString(file, CsvLoader.HEADER + "\nR R,1900,\nA A,1950,R R\nB B,19");
+            CsvTail cut = new CsvTail(file.toString(), new CsvLoader());
+            check(cut.tree().size() == 2, "the partial row was read on load");
+            Files.writeString(file, "51,A A\nC C,1960,B B\n", StandardOpenOption.APPEND);
+            cut.update();
+            check(cut.problems().isEmpty(), "problems " + cut.problems());
+            check(cut.tree().size() == 4 && cut.parked() == 0, "rows were lost: " + cut.stats());
+            try {
+                check(cut.tree().findAdvisor(new Professor("B", "B")).equals(new Professor("A", "A"))
+                        && cut.tree().findTree(new Professor("B", "B")).phdYear() == 1951,
+                        "the row cut short was misread");
+            } catch (NotFound e) {
+                throw new AssertionError("the row cut short was lost");
+            }
+
+            Random rnd = new Random(42);
+            int[] advisor = new int[n];
+            int[] order = new int[n];
+            for (int i = 0; i < n; i++) {
+                advisor[i] = i == 0 ? -1 : rnd.nextInt(i);
+                order[i] = i;
+            }
+            // some rows come just before their advisor's, and wait for it in the tail
+            for (int i = 2; i + 1 < n; i += 2) {
+                if (rnd.nextInt(4) == 0) {
+                    order[i] = i + 1;
+                    order[i + 1] = i;
+                }
+            }
+            StringBuilder csv = new StringBuilder(CsvLoader.HEADER).append('\n');
+            csv.append(person(0)).append(",1900,\n");
+            int initial = csv.length();
+            for (int i = 1; i < n; i++) {
+                int r = order[i];
+                csv.append(person(r)).append(',').append(1900 + r % 120).append(',')
+                        .append(person(advisor[r])).append('\n');
+            }
+            byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+            file = dir.resolve("grow.csv");
+            int at = Math.min(bytes.length, initial + rnd.nextInt(64));
+            Files.write(file, Arrays.copyOf(bytes, at));
+            CsvTail tail = new CsvTail(file.toString(), new CsvLoader());
+            long nanos = 0;
+            while (at < bytes.length) {
+                int len = Math.min(bytes.length - at, 1 + rnd.nextInt(4096));
+                Files.write(file, Arrays.copyOfRange(bytes, at, at + len), StandardOpenOption.APPEND);
+                at += len;
+                long start = System.nanoTime();
+                tail.update();
+                nanos += System.nanoTime() - start;
+                check(tail.problems().isEmpty(), "problems " + tail.problems());
+            }
+            check(tail.offset() == bytes.length, "stopped at byte " + tail.offset());
+            check(tail.tree().size() == n && tail.parked() == 0, "rows were lost: " + tail.stats());
+            for (int i = 1; i < n; i++) {
+                try {
+                    check(tail.tree().findAdvisor(person(i)).equals(person(advisor[i])),
+                            "wrong advisor of " + person(i));
+                } catch (NotFound e) {
+                    throw new AssertionError(person(i) + " is missing");
+                }
+            }
+            System.out.printf("rows: %d, updates: %.0f rows/s%n", n, (n - 1) / (nanos / 1e9));
+            System.out.println("tail: a row cut short is read once complete; no rows lost");
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    /** Throws an AssertionError with message if ok is false. */
+    private static void check(boolean ok, String message) {
+        if (!ok) throw new AssertionError(message);
+    }
+
+    /**
+     * Effect: run a load test against a QueryServer on port of this machine. Each of
+     * clients threads opens its own connection and sends commands commands, in
+     * pipelined groups of window, taking them in turn from the lines of the file
+     * named script other than "exit" (or sending "size" if script is null). Print the throughput and
+     * the latency percentiles of single commands, measured from sending the group a
+     * command is in to reading its answer.
+     * Throws an IOException if script cannot be read, and InterruptedException if
+     * interrupted while waiting for the clients.
+     */
+    static void load(int port, int clients, int commands, int window, String script)
+            throws IOException, InterruptedException {
+        List<String> lines = new ArrayList<>(List.of("size"));
+        if (script != null) {
+            lines.clear();
+            for (String line : Files.readAllLines(Path.of(script))) {
+                if (!Main.words(line)[0].toLowerCase().equals("exit")) lines.add(line);
+            }
+        }
+        long[][] latencies = new long[clients][commands];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            threads[c] = new Thread(() -> {
+                try {
+                    loadClient(port, lines, client, latencies[client], window);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        long nanos = System.nanoTime() - start;
+        if (failure.get() != null) throw new IOException(failure.get().toString(), failure.get());
+
+        long[] all = new long[clients * commands];
+        for (int c = 0; c < clients; c++) {
+            System.arraycopy(latencies[c], 0, all, c * commands, commands);
+        }
+        Arrays.sort(all);
+        System.out.printf("clients: %d, commands: %d, window: %d%n", clients, all.length, window);
+        System.out.printf("throughput: %.0f commands/s%n", all.length / (nanos / 1e9));
+        String[] names = {"p50", "p90", "p99", "p99.9"};
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for (int i = 0; i < names.length; i++) {
+            int rank = (int) Math.min(all.length - 1, quantiles[i] * all.length);
+            System.out.printf("%s: %.3f ms%n", names[i], all[rank] / 1e6);
+        }
+        System.out.printf("max: %.3f ms%n", all[all.length - 1] / 1e6);
+    }
+
+    /**
+     * Effect: send latencies.length commands from lines, starting at line number
+     * client, to the server on port, window at a time, and record the latency of
+     * each in latencies. Throws an IOException if the connection fails.
+     */
+    private static void loadClient(int port, List<String> lines, int client, long[] latencies,
+            int window) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+            socket.setTcpNoDelay(true);
+            int next = client % lines.size();
+            for (int i = 0; i < latencies.length; i += window) {
+                int group = Math.min(window, latencies.length - i);
+                for (int j = 0; j < group; j++) {
+                    out.write(lines.get(next));
+                    out.write('\n');
+                    next = (next + 1) % lines.size();
+                }
+                out.flush();
+                long sent = System.nanoTime();
+                for (int j = 0; j < group; j++) {
+                    String line;
+                    while ((line = in.readLine()) != null && !line.equals(QueryServer.END_OF_ANSWER)) {
+                        // skip the answer itself
+                    }
+                    if (line == null) throw new IOException("server closed the connection");
+                    latencies[i + j] = System.nanoTime() - sent;
+                }
+            }
+            out.write("exit\n");
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package a4;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A benchmark suite covering every PhDTree query, insert and CSV loading, on synthetic
+ * genealogies of each Shape, run from the command line as:
+ * <pre>
+ * java a4.BenchmarkSuite [-n nodes] [-f fanout] [-d depth] [-s shapes] [-t ms] [-o file.json]
+ * </pre>
+ * shapes is a comma-separated list of Shape names (default balanced,chain,star), fanout
+ * applies to balanced genealogies and depth to chains, and ms is the length of each
+ * measurement iteration.
+ *
+ * <p>Like JMH, the suite forks fresh JVMs to run the benchmarks in: one with assertions
+ * disabled and one with them enabled, since classInv changes the cost of every
+ * operation. Each benchmark runs WARMUP iterations and then MEASURED ones, and reports
+ * the average time per operation. The results are written as a JSON array in the
+ * layout of JMH's JSON output, with an extra "assertions" field, so existing tools can
+ * track them. Progress is printed to standard error.
+ */
+public class BenchmarkSuite {
+    /** The number of iterations run before measuring. */
+    private static final int WARMUP = 3;
+
+    /** The number of iterations measured. */
+    private static final int MEASURED = 5;
+
+    /** The number of distinct query arguments, cycled through by each benchmark. */
+    private static final int KEYS = 1 << 12;
+
+    /** The option that makes this JVM run the benchmarks itself instead of forking. */
+    private static final String IN_PROCESS = "--in-process";
+
+    /** Receives results so that the JIT cannot discard the work producing them. */
+    private static volatile long sink;
+
+    /** One benchmarked operation. */
+    private interface Op {
+        /** Effect: perform the operation on the argument numbered i. Returns any result. */
+        long run(int i) throws Exception;
+    }
+
+    /** A named benchmark: an Op, the operations each run of it performs, and its setup. */
+    private static final class Bench {
+        final String name;
+        final int opsPerRun;
+        /** Run once before the benchmark, or null. */
+        final Runnable setup;
+        final Op op;
+
+        Bench(String name, int opsPerRun, Runnable setup, Op op) {
+            this.name = name;
+            this.opsPerRun = opsPerRun;
+            this.setup = setup;
+            this.op = op;
+        }
+    }
+
+    private int nodes = 100_000;
+    private int fanout = 4;
+    private int depth = 1_000;
+    private List<Benchmark.Shape> shapes =
+            List.of(Benchmark.Shape.BALANCED, Benchmark.Shape.CHAIN, Benchmark.Shape.STAR);
+    private long iterationMillis = 200;
+    private String output = "";
+    private boolean inProcess = false;
+
+    /**
+     * Effect: Print a usage message to standard error.
+     */
+    public static void usage() {
+        System.err.println("Usage: a4.BenchmarkSuite [-n nodes] [-f fanout] [-d depth]"
+                + " [-s balanced,chain,star,random] [-t ms] [-o file.json]");
+    }
+
+    public static void main(String[] args) {
+        BenchmarkSuite suite = new BenchmarkSuite();
+        if (!suite.processArguments(args)) {
+            usage();
+            System.exit(1);
+        }
+        try {
+            if (suite.inProcess) {
+                suite.runAll(System.out);
+            } else {
+                suite.fork(args);
+            }
+        } catch (Exception e) {
+            System.err.println("Benchmark failed: " + e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Effect: set the options of this suite from args.
+     * Returns true iff all arguments were parsed.
+     */
+    private boolean processArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case IN_PROCESS:
+                        inProcess = true;
+                        continue;
+                    case "-n":
+                        nodes = Integer.parseInt(args[++i]);
+                        break;
+                    case "-f":
+                        fanout = Integer.parseInt(args[++i]);
+                        break;
+                    case "-d":
+                        depth = Integer.parseInt(args[++i]);
+                        break;
+                    case "-t":
+                        iterationMillis = Long.parseLong(args[++i]);
+                        break;
+                    case "-o":
+                        output = args[++i];
+                        break;
+                    case "-s":
+                        List<Benchmark.Shape> list = new ArrayList<>();
+                        for (String name : args[++i].split(",")) {
+                            list.add(Benchmark.Shape.valueOf(name.toUpperCase(Locale.ROOT)));
+                        }
+                        shapes = list;
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return nodes >= 2 && fanout >= 1 && depth >= 1 && iterationMillis >= 1;
+    }
+
+    /**
+     * Effect: run the suite in two child JVMs, with assertions disabled and enabled,
+     * and write their results as one JSON array to the output file, or to standard
+     * output if there is none. Throws an IOException if a child cannot be run or
+     * fails, and InterruptedException if interrupted while waiting for one.
+     */
+    private void fork(String[] args) throws IOException, InterruptedException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> results = new ArrayList<>();
+        for (String assertions : new String[] {"-da", "-ea"}) {
+            List<String> command = new ArrayList<>(List.of(java, assertions,
+                    "-cp", System.getProperty("java.class.path"), BenchmarkSuite.class.getName()));
+            command.addAll(List.of(args));
+            command.add(IN_PROCESS);
+            Process child = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    results.add(line);
+                }
+            }
+            if (child.waitFor() != 0) {
+                throw new IOException("benchmark JVM " + assertions + " exited with " + child.exitValue());
+            }
+        }
+        String json = "[\n" + String.join(",\n", results) + "\n]\n";
+        if (output.isEmpty()) {
+            System.out.print(json);
+        } else {
+            try (Writer out = Files.newBufferedWriter(Path.of(output))) {
+                out.write(json);
+            }
+        }
+    }
+
+    /**
+     * Effect: run every benchmark on every shape in this JVM, printing each result to
+     * out as a JSON object on a line of its own. Throws an exception if an operation does.
+     */
+    private void runAll(PrintStream out) throws Exception {
+        boolean assertions = false;
+        assert assertions = true;
+        for (Benchmark.Shape shape : shapes) {
+            String params = String.format(Locale.ROOT,
+                    "{\"shape\":\"%s\",\"nodes\":\"%d\",\"fanout\":\"%d\",\"depth\":\"%d\"}",
+                    shape.name().toLowerCase(Locale.ROOT), nodes, fanout, depth);
+            PhDTree tree = Benchmark.genealogy(shape, nodes, fanout, depth, 42);
+            Path csv = Files.createTempFile("a4-bench", ".csv");
+            try {
+                writeCsv(shape, csv);
+                Random rnd = new Random(7);
+                Professor[] hits = new Professor[KEYS];
+                Professor[] probes = new Professor[KEYS];
+                Professor[] pairs = new Professor[KEYS];
+                PhDTree[] subtrees = new PhDTree[KEYS];
+                for (int i = 0; i < KEYS; i++) {
+                    hits[i] = Benchmark.person(1 + rnd.nextInt(nodes - 1));
+                    probes[i] = Benchmark.person(rnd.nextInt(2 * nodes));
+                    pairs[i] = Benchmark.person(1 + rnd.nextInt(nodes - 1));
+                    subtrees[i] = tree.findTree(hits[i]);
+                }
+                int mask = KEYS - 1;
+
+                List<Bench> benches = List.of(
+                        new Bench("insert", nodes - 1, null,
+                                i -> Benchmark.genealogy(shape, nodes, fanout, depth, i).size()),
+                        new Bench("csvLoad", 1, null,
+                                i -> new CsvLoader().load(csv.toString()).size()),
+                        new Bench("contains", 1, null,
+                                i -> tree.contains(probes[i & mask]) ? 1 : 0),
+                        new Bench("findTree", 1, null,
+                                i -> tree.findTree(hits[i & mask]).size()),
+                        new Bench("findAdvisor", 1, null,
+                                i -> tree.findAdvisor(hits[i & mask]).hashCode()),
+                        new Bench("findAcademicLineage", 1, null,
+                                i -> tree.findAcademicLineage(hits[i & mask]).size()),
+                        new Bench("commonAncestor", 1, () -> tree.useAncestorIndex(false),
+                                i -> tree.commonAncestor(hits[i & mask], pairs[i & mask]).hashCode()),
+                        new Bench("commonAncestorIndexed", 1, () -> tree.useAncestorIndex(true),
+                                i -> tree.commonAncestor(hits[i & mask], pairs[i & mask]).hashCode()),
+                        new Bench("size", 1, null, i -> subtrees[i & mask].size()),
+                        new Bench("maxDepth", 1, null, i -> subtrees[i & mask].maxDepth()),
+                        new Bench("toString", 1, null, i -> tree.toString().length()));
+
+                for (Bench bench : benches) {
+                    System.err.printf("%s %s (assertions %s)%n", shape, bench.name,
+                            assertions ? "on" : "off");
+                    if (bench.setup != null) bench.setup.run();
+                    double[] scores = measure(bench.op, bench.opsPerRun);
+                    out.println(json(bench.name, params, assertions, scores));
+                }
+            } finally {
+                Files.deleteIfExists(csv);
+            }
+        }
+    }
+
+    /**
+     * Effect: write the genealogy of the given shape, with this suite's parameters, to
+     * the CSV file at path in the format CsvLoader reads. Throws an IOException if the
+     * file cannot be written.
+     */
+    private void writeCsv(Benchmark.Shape shape, Path path) throws IOException {
+        Random rnd = new Random(42);
+        try (Writer out = Files.newBufferedWriter(path)) {
+            out.write(CsvLoader.HEADER + "\n");
+            out.write(Benchmark.person(0) + ",1900,\n");
+            for (int i = 1; i < nodes; i++) {
+                int a = Benchmark.advisorOf(shape, i, fanout, depth, rnd);
+                out.write(Benchmark.person(i) + "," + (1900 + i % 120) + "," + Benchmark.person(a) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Returns the average time per operation, in nanoseconds, of each measured
+     * iteration of op, where each run of op performs opsPerRun operations.
+     * An iteration runs op, in growing batches between reading the clock, until it has
+     * taken iterationMillis. Throws an exception if op does.
+     */
+    private double[] measure(Op op, int opsPerRun) throws Exception {
+        double[] scores = new double[MEASURED];
+        long target = iterationMillis * 1_000_000;
+        long acc = 0;
+        int arg = 0;
+        for (int it = 0; it < WARMUP + MEASURED; it++) {
+            long runs = 0;
+            int batch = 1;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                long batchStart = System.nanoTime();
+                for (int k = 0; k < batch; k++) {
+                    acc += op.run(arg++);
+                }
+                runs += batch;
+                elapsed = System.nanoTime() - start;
+                if (batch < 1024 && System.nanoTime() - batchStart < target / 100) batch *= 2;
+            } while (elapsed < target);
+            if (it >= WARMUP) scores[it - WARMUP] = elapsed / ((double) runs * opsPerRun);
+        }
+        sink = acc;
+        return scores;
+    }
+
+    /** Returns a JMH-style JSON object for the benchmark called name and its scores. */
+    private static String json(String name, String params, boolean assertions, double[] scores) {
+        double mean = 0;
+        for (double s : scores) mean += s;
+        mean /= scores.length;
+        double var = 0;
+        for (double s : scores) var += (s - mean) * (s - mean);
+        double error = 3.29 * Math.sqrt(var / (scores.length - 1)) / Math.sqrt(scores.length);
+        StringBuilder raw = new StringBuilder();
+        for (double s : scores) {
+            if (raw.length() > 0) raw.append(',');
+            raw.append(String.format(Locale.ROOT, "%.3f", s));
+        }
+        return String.format(Locale.ROOT, "{\"benchmark\":\"a4.PhDTree.%s\",\"mode\":\"avgt\","
+                + "\"forks\":1,\"warmupIterations\":%d,\"measurementIterations\":%d,"
+                + "\"params\":%s,\"assertions\":%b,\"primaryMetric\":{\"score\":%.3f,"
+                + "\"scoreError\":%.3f,\"scoreUnit\":\"ns/op\",\"rawData\":[[%s]]}}",
+                name, WARMUP, MEASURED, params, assertions, mean, error, raw);
+    }
+}
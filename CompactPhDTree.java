@@ -0,0 +1,267 @@
+package a4;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable PhDTree held in flat int arrays instead of one object per node, for
+ * genealogies with millions of people. It answers the same queries as PhDTree.
+ *
+ * <p>Nodes are numbered in pre-order with each node's advisees in order, so the
+ * subtree of node v is exactly the nodes v to v + size(v) - 1. Names are interned:
+ * each distinct first or last name is stored once and nodes refer to it by number.
+ * A CompactPhDTree is a view of the subtree rooted at one node of the arrays, and
+ * findTree returns views that share the arrays.
+ */
+public final class CompactPhDTree {
+    /** The arrays shared by every view of one tree. */
+    private static final class Data {
+        /** The distinct names, by number. */
+        String[] names;
+        /** The first and last name of each node, as name numbers. */
+        final int[] first, last;
+        /** The PhD year of each node. */
+        final int[] year;
+        /** The advisor of each node, or -1 for the root. */
+        final int[] parent;
+        /** The first advisee of each node, or -1 for a leaf. */
+        final int[] firstChild;
+        /** The next advisee of the same advisor, or -1 for the last one. */
+        final int[] nextSibling;
+        /** The size, maximum depth, and depth below the root of each node's subtree. */
+        final int[] size, height, depth;
+        /** A hash table of nodes by Professor, holding node + 1, or 0 in an empty slot. */
+        final int[] table;
+
+        Data(int n) {
+            first = new int[n];
+            last = new int[n];
+            year = new int[n];
+            parent = new int[n];
+            firstChild = new int[n];
+            nextSibling = new int[n];
+            size = new int[n];
+            height = new int[n];
+            depth = new int[n];
+            table = new int[Integer.highestOneBit(Math.max(2 * n - 1, 1)) << 1];
+        }
+    }
+
+    /** The arrays holding the whole tree. */
+    private final Data d;
+
+    /** The node at the root of this view. */
+    private final int root;
+
+    /** Creates: a view of the subtree of d rooted at node root. */
+    private CompactPhDTree(Data d, int root) {
+        this.d = d;
+        this.root = root;
+    }
+
+    /** Returns a CompactPhDTree with the same nodes as the subtree rooted at tree. */
+    public static CompactPhDTree of(PhDTree tree) {
+        int n = tree.size();
+        Data d = new Data(n);
+        PhDTree[] order = new PhDTree[n];
+        Arrays.fill(d.firstChild, -1);
+        Arrays.fill(d.nextSibling, -1);
+
+        // number the nodes in pre-order, linking each to its advisor and previous sibling
+        Deque<Iterator<PhDTree>> stack = new ArrayDeque<>();
+        int[] stackNode = new int[n];
+        int[] lastChild = new int[n];
+        order[0] = tree;
+        d.parent[0] = -1;
+        lastChild[0] = -1;
+        stack.push(tree.advisees().iterator());
+        int count = 1;
+        while (!stack.isEmpty()) {
+            Iterator<PhDTree> it = stack.peek();
+            if (!it.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            int a = stackNode[stack.size() - 1];
+            int v = count++;
+            order[v] = it.next();
+            d.parent[v] = a;
+            d.depth[v] = d.depth[a] + 1;
+            if (lastChild[a] < 0) d.firstChild[a] = v;
+            else d.nextSibling[lastChild[a]] = v;
+            lastChild[a] = v;
+            lastChild[v] = -1;
+            stackNode[stack.size()] = v;
+            stack.push(order[v].advisees().iterator());
+        }
+
+        Map<String, Integer> nameIds = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        int mask = d.table.length - 1;
+        for (int v = 0; v < n; v++) {
+            Professor p = order[v].prof();
+            d.first[v] = nameIds.computeIfAbsent(p.firstName(), s -> intern(s, names));
+            d.last[v] = nameIds.computeIfAbsent(p.lastName(), s -> intern(s, names));
+            d.year[v] = order[v].phdYear();
+            d.size[v] = 1;
+            int slot = p.hashCode() & mask;
+            while (d.table[slot] != 0) slot = (slot + 1) & mask;
+            d.table[slot] = v + 1;
+        }
+        d.names = names.toArray(new String[0]);
+        for (int v = n - 1; v > 0; v--) {
+            int a = d.parent[v];
+            d.size[a] += d.size[v];
+            d.height[a] = Math.max(d.height[a], d.height[v] + 1);
+        }
+        return new CompactPhDTree(d, 0);
+    }
+
+    /** Effect: add name to names. Returns its number. */
+    private static int intern(String name, List<String> names) {
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    /** Returns the node holding p in this view, or -1 if there is none. */
+    private int node(Professor p) {
+        int mask = d.table.length - 1;
+        for (int slot = p.hashCode() & mask; ; slot = (slot + 1) & mask) {
+            int v = d.table[slot] - 1;
+            if (v < 0) return -1;
+            if (d.names[d.last[v]].equals(p.lastName())
+                    && d.names[d.first[v]].equals(p.firstName())) {
+                return v >= root && v < root + d.size[root] ? v : -1;
+            }
+        }
+    }
+
+    /** Returns the Professor at node v. */
+    private Professor prof(int v) {
+        return new Professor(d.names[d.first[v]], d.names[d.last[v]]);
+    }
+
+    /** The Professor at the root of this tree. */
+    public Professor prof() {
+        return prof(root);
+    }
+
+    /** The number of direct advisees of the professor at the root of this tree. */
+    public int numAdvisees() {
+        int count = 0;
+        for (int c = d.firstChild[root]; c >= 0; c = d.nextSibling[c]) count++;
+        return count;
+    }
+
+    /** Returns the number of nodes in this tree. */
+    public int size() {
+        return d.size[root];
+    }
+
+    /** The maximum depth of this tree, i.e. the longest path from the root to a leaf. */
+    public int maxDepth() {
+        return d.height[root];
+    }
+
+    /** Returns true if this tree contains a node with Professor p. */
+    public boolean contains(Professor p) {
+        return node(p) >= 0;
+    }
+
+    /**
+     * Returns the subtree with p at the root. Throws NotFound
+     * if p is not in the tree.
+     */
+    public CompactPhDTree findTree(Professor p) throws NotFound {
+        int v = node(p);
+        if (v < 0) throw NotFound.shared();
+        return new CompactPhDTree(d, v);
+    }
+
+    /**
+     * Returns the immediate advisor of p, or throws NotFound if
+     * p is not a descendant of the root node of this tree.
+     */
+    public Professor findAdvisor(Professor p) throws NotFound {
+        int v = node(p);
+        if (v <= root) throw NotFound.shared();
+        return prof(d.parent[v]);
+    }
+
+    /**
+     * Returns: The path between "here" (the root of this tree) to
+     * professor descendant p. Throws NotFound if there is no such path.
+     */
+    public List<Professor> findAcademicLineage(Professor p) throws NotFound {
+        int v = node(p);
+        if (v < 0) throw NotFound.shared();
+        List<Professor> lineage = new ArrayList<>(d.depth[v] - d.depth[root] + 1);
+        for (; v != root; v = d.parent[v]) {
+            lineage.add(prof(v));
+        }
+        lineage.add(prof(root));
+        Collections.reverse(lineage);
+        return lineage;
+    }
+
+    /**
+     * Returns: The professor at the root of the smallest subtree of
+     * this tree that contains prof1 and prof2, if such a subtree
+     * exists. Otherwise, throws NotFound.
+     */
+    public Professor commonAncestor(Professor prof1, Professor prof2) throws NotFound {
+        int a = node(prof1);
+        int b = node(prof2);
+        if (a < 0 || b < 0) throw NotFound.shared();
+        while (d.depth[a] > d.depth[b]) a = d.parent[a];
+        while (d.depth[b] > d.depth[a]) b = d.parent[b];
+        while (a != b) {
+            a = d.parent[a];
+            b = d.parent[b];
+        }
+        return prof(a);
+    }
+
+    /** Return a (single line) String representation of this tree, as PhDTree.toString does. */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        int v = root;
+        while (true) {
+            s.append(d.names[d.first[v]]).append(' ').append(d.names[d.last[v]]);
+            if (d.firstChild[v] >= 0) {
+                s.append(PhDTree.START_ADVISEE_DELIMITER);
+                v = d.firstChild[v];
+                continue;
+            }
+            while (v != root && d.nextSibling[v] < 0) {
+                v = d.parent[v];
+                s.append(PhDTree.END_ADVISEE_DELIMITER);
+            }
+            if (v == root) return s.toString();
+            s.append(PhDTree.DELIMITER);
+            v = d.nextSibling[v];
+        }
+    }
+
+    /**
+     * Return a verbose (multi-line) string representing this tree, as
+     * PhDTree.toStringVerbose does.
+     */
+    public String toStringVerbose() {
+        StringBuilder s = new StringBuilder();
+        for (int v = root, end = root + d.size[root]; v < end; v++) {
+            if (v != root) s.append('\n');
+            s.append(d.names[d.first[v]]).append(' ').append(d.names[d.last[v]])
+                    .append(" - ").append(d.year[v]);
+        }
+        return s.toString();
+    }
+}
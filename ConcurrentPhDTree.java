@@ -0,0 +1,370 @@
+package a4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A PhDTree that one thread can insert into while any number of other threads query
+ * it. It answers the same queries as PhDTree.
+ *
+ * <p>Inserts are serialized by the write lock of a StampedLock shared by the whole
+ * tree. Readers never take the lock, so they never block an insert or one another,
+ * and each query answers as of some moment between two inserts:
+ * <ul>
+ * <li>A node's Professor, year, advisor and depth are final, and the index of nodes
+ * by Professor is a ConcurrentHashMap to which a node is added as the last step of
+ * its insert, once it is counted and linked, so findTree, contains, findAdvisor,
+ * findAcademicLineage and commonAncestor read no state that an insert changes
+ * afterwards.
+ * <li>The advisees of a node are a ConcurrentSkipListSet and cached sizes and heights
+ * are volatile, so a traversal is safe while an insert runs. numAdvisees, size,
+ * maxDepth and the string forms read them under an optimistic read stamp and read
+ * again if an insert overlapped them, spinning and then yielding between attempts.
+ * So size() never counts a node that contains() and toString() do not see yet.
+ * <li>A reader that has been overlapped OPTIMISTIC_ATTEMPTS times, such as the
+ * string form of a large subtree under a steady stream of inserts, says so in the
+ * shared state, and inserts wait, without any lock, until no reader does. So
+ * readers are not starved, and it is the writer, not a reader, that waits.
+ * </ul>
+ */
+public final class ConcurrentPhDTree {
+    /** The number of overlapped attempts at a query after which inserts wait for it. */
+    private static final int OPTIMISTIC_ATTEMPTS = 4;
+
+    /** The number of overlapped attempts after which a reader yields instead of spinning. */
+    private static final int SPINS = 64;
+
+    /** The state shared by all nodes of one tree. */
+    private static final class Shared {
+        /** Every node of the tree, by Professor. */
+        final ConcurrentHashMap<Professor, ConcurrentPhDTree> nodes = new ConcurrentHashMap<>();
+        /** Serializes inserts and lets readers detect that one overlapped them. */
+        final StampedLock lock = new StampedLock();
+        /** The number of readers overlapped OPTIMISTIC_ATTEMPTS times, which inserts wait for. */
+        final AtomicInteger starving = new AtomicInteger();
+    }
+
+    /** The Professor at the root of this tree. */
+    private final Professor prof;
+
+    /** The year in which prof was awarded their PhD. */
+    private final int phdYear;
+
+    /** The advisees of prof, ordered by Professor. */
+    private final NavigableSet<ConcurrentPhDTree> advisees =
+            new ConcurrentSkipListSet<>((x, y) -> x.prof.compareTo(y.prof));
+
+    /** The node of prof's advisor, or null at the root of the whole tree. */
+    private final ConcurrentPhDTree advisor;
+
+    /** The number of edges between this node and the root of the whole tree. */
+    private final int depth;
+
+    /** The number of nodes in this subtree. Written only under the write lock. */
+    private volatile int size = 1;
+
+    /** The maximum depth of this subtree. Written only under the write lock. */
+    private volatile int height;
+
+    /** The state shared by all nodes of this tree. */
+    private final Shared shared;
+
+    /** Creates: a new ConcurrentPhDTree with root Professor p and no children. */
+    public ConcurrentPhDTree(Professor p, int year) {
+        this(p, year, null, new Shared());
+        shared.nodes.put(p, this);
+        assert classInv();
+    }
+
+    /**
+     * Creates: a node for Professor p below advisor a, or a root if a is null.
+     * The caller must link it into the tree and the index.
+     */
+    private ConcurrentPhDTree(Professor p, int year, ConcurrentPhDTree a, Shared shared) {
+        assert p != null;
+        prof = p;
+        phdYear = year;
+        advisor = a;
+        depth = a == null ? 0 : a.depth + 1;
+        this.shared = shared;
+    }
+
+    /**
+     * Returns a ConcurrentPhDTree with the same nodes as the subtree rooted at tree.
+     * Requires: tree does not change meanwhile.
+     */
+    public static ConcurrentPhDTree of(PhDTree tree) {
+        ConcurrentPhDTree root = new ConcurrentPhDTree(tree.prof(), tree.phdYear());
+        for (PhDTree n : tree.preOrder()) {
+            if (n == tree) continue;
+            root.insert(n.advisor().prof(), n.prof(), n.phdYear());
+        }
+        return root;
+    }
+
+    /**
+     * Returns the result of query, run under an optimistic read stamp and run again
+     * until no insert overlapped it. Spins and then yields to the inserting thread
+     * between attempts, and after OPTIMISTIC_ATTEMPTS of them makes inserts wait.
+     * Never takes the lock.
+     */
+    private <T> T optimistic(Supplier<T> query) {
+        boolean starving = false;
+        try {
+            for (int attempt = 0; ; attempt++) {
+                long stamp = shared.lock.tryOptimisticRead();
+                if (stamp != 0) {
+                    T result = query.get();
+                    if (shared.lock.validate(stamp)) return result;
+                }
+                if (attempt == OPTIMISTIC_ATTEMPTS) {
+                    shared.starving.incrementAndGet();
+                    starving = true;
+                }
+                if (attempt < SPINS) Thread.onSpinWait();
+                else Thread.yield();
+            }
+        } finally {
+            if (starving) shared.starving.decrementAndGet();
+        }
+    }
+
+    /** Returns the result of query, as optimistic does, without boxing it if it succeeds at once. */
+    private int optimisticInt(IntSupplier query) {
+        long stamp = shared.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int result = query.getAsInt();
+            if (shared.lock.validate(stamp)) return result;
+        }
+        return optimistic(query::getAsInt);
+    }
+
+    /** Returns false or throws an assertion error if the class invariant does
+     *  not hold for this tree: each Professor is in it once, is indexed, and its
+     *  advisees link back to it with the right depth and cached aggregates.
+     *  Requires: no insert runs meanwhile.
+     */
+    boolean classInv() {
+        Set<Professor> seen = new HashSet<>();
+        List<ConcurrentPhDTree> frontier = new ArrayList<>();
+        frontier.add(this);
+        while (!frontier.isEmpty()) {
+            ConcurrentPhDTree n = frontier.remove(frontier.size() - 1);
+            assert seen.add(n.prof) : "prof " + n.prof + " is not unique";
+            if (!n.localInv()) return false;
+            frontier.addAll(n.advisees);
+        }
+        return true;
+    }
+
+    /** Returns false or throws an assertion error if the class invariant does
+     *  not hold at this node.
+     */
+    private boolean localInv() {
+        assert shared.nodes.get(prof) == this : "prof " + prof + " is not indexed";
+        int s = 1;
+        int h = 0;
+        for (ConcurrentPhDTree child : advisees) {
+            assert child.advisor == this : "prof " + child.prof + " has the wrong advisor";
+            assert child.depth == depth + 1 : "prof " + child.prof + " has the wrong depth";
+            s += child.size;
+            h = Math.max(h, child.height + 1);
+        }
+        assert size == s : "prof " + prof + " has cached size " + size + " but " + s + " nodes";
+        assert height == h : "prof " + prof + " has cached height " + height + " but " + h + " levels";
+        return true;
+    }
+
+    /** The Professor at the root of this tree. */
+    public Professor prof() {
+        return prof;
+    }
+
+    /** The year in which the Professor at the root of this tree was awarded their PhD. */
+    public int phdYear() {
+        return phdYear;
+    }
+
+    /** The number of direct advisees of the professor at the root of this tree. */
+    public int numAdvisees() {
+        return optimisticInt(advisees::size);
+    }
+
+    /** Returns the number of nodes in this tree. Takes constant time unless an insert overlaps it. */
+    public int size() {
+        return optimisticInt(() -> size);
+    }
+
+    /**
+     * The maximum depth of this tree, i.e. the longest path from the root to a leaf.
+     * Takes constant time unless an insert overlaps it.
+     */
+    public int maxDepth() {
+        return optimisticInt(() -> height);
+    }
+
+    /**
+     * Returns the node of this tree holding p, or null if p is not in this tree.
+     * Takes expected constant time at the root of the whole tree, and time
+     * proportional to the depth of p below this node otherwise.
+     */
+    private ConcurrentPhDTree nodeOf(Professor p) {
+        ConcurrentPhDTree node = shared.nodes.get(p);
+        if (node == null || advisor == null) return node;
+        ConcurrentPhDTree n = node;
+        while (n.depth > depth) {
+            n = n.advisor;
+        }
+        return n == this ? node : null;
+    }
+
+    /** Returns true if this tree contains a node with Professor p. */
+    public boolean contains(Professor p) {
+        return nodeOf(p) != null;
+    }
+
+    /**
+     * Returns the subtree with p at the root. Throws NotFound
+     * if p is not in the tree.
+     */
+    public ConcurrentPhDTree findTree(Professor p) throws NotFound {
+        ConcurrentPhDTree node = nodeOf(p);
+        if (node == null) throw NotFound.shared();
+        return node;
+    }
+
+    /**
+     * Effect: Extend the tree rooted at Professor p with a new node for
+     * the new advisee, Professor a, who received their PhD in the year
+     * year. Waits for any other insert to finish first, and for any reader that
+     * inserts have overlapped OPTIMISTIC_ATTEMPTS times to finish.
+     * Checks: p is in this tree, and a is not already in this tree.
+     */
+    public void insert(Professor p, Professor a, int year) {
+        while (shared.starving.get() > 0) Thread.yield();
+        long stamp = shared.lock.writeLock();
+        try {
+            ConcurrentPhDTree myP = findTree(p);
+            if (!shared.nodes.containsKey(a)) {
+                ConcurrentPhDTree newStudent = new ConcurrentPhDTree(a, year, myP, shared);
+                int h = 0;
+                for (ConcurrentPhDTree n = myP; n != null; n = n.advisor) {
+                    n.size++;
+                    h++;
+                    if (n.height < h) n.height = h;
+                }
+                // published last, after the aggregates that count it
+                myP.advisees.add(newStudent);
+                shared.nodes.put(a, newStudent);
+            }
+        } catch (NotFound exc) {
+            System.out.println("Not Found Professor " + p.toString());
+        } finally {
+            shared.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the immediate advisor of p, or throws NotFound if
+     * p is not a descendant of the root node of this tree.
+     */
+    public Professor findAdvisor(Professor p) throws NotFound {
+        ConcurrentPhDTree node = nodeOf(p);
+        if (node == null || node == this) throw NotFound.shared();
+        return node.advisor.prof;
+    }
+
+    /**
+     * Returns: The path between "here" (the root of this tree) to
+     * professor descendant p. Throws NotFound if there is no such path.
+     */
+    public List<Professor> findAcademicLineage(Professor p) throws NotFound {
+        ConcurrentPhDTree node = findTree(p);
+        List<Professor> lineage = new ArrayList<>(node.depth - depth + 1);
+        for (ConcurrentPhDTree n = node; n != this; n = n.advisor) {
+            lineage.add(n.prof);
+        }
+        lineage.add(prof);
+        Collections.reverse(lineage);
+        return lineage;
+    }
+
+    /**
+     * Returns: The professor at the root of the smallest subtree of
+     * this tree that contains prof1 and prof2, if such a subtree
+     * exists. Otherwise, throws NotFound.
+     */
+    public Professor commonAncestor(Professor prof1, Professor prof2) throws NotFound {
+        ConcurrentPhDTree a = findTree(prof1);
+        ConcurrentPhDTree b = findTree(prof2);
+        while (a.depth > b.depth) a = a.advisor;
+        while (b.depth > a.depth) b = b.advisor;
+        while (a != b) {
+            a = a.advisor;
+            b = b.advisor;
+        }
+        return a.prof;
+    }
+
+    /** Return a (single line) String representation of this tree, as PhDTree.toString does. */
+    @Override
+    public String toString() {
+        return optimistic(() -> {
+            StringBuilder s = new StringBuilder();
+            append(s);
+            return s.toString();
+        });
+    }
+
+    /** Effect: append toString() to s, walking the tree without recursion. */
+    private void append(StringBuilder s) {
+        ConcurrentPhDTree n = this;
+        while (true) {
+            s.append(n.prof);
+            if (!n.advisees.isEmpty()) {
+                s.append(PhDTree.START_ADVISEE_DELIMITER);
+                n = n.advisees.first();
+                continue;
+            }
+            ConcurrentPhDTree sibling = null;
+            while (n != this && (sibling = n.advisor.advisees.higher(n)) == null) {
+                n = n.advisor;
+                s.append(PhDTree.END_ADVISEE_DELIMITER);
+            }
+            if (n == this) return;
+            s.append(PhDTree.DELIMITER);
+            n = sibling;
+        }
+    }
+
+    /**
+     * Return a verbose (multi-line) string representing this tree, as
+     * PhDTree.toStringVerbose does.
+     */
+    public String toStringVerbose() {
+        return optimistic(() -> {
+            StringBuilder s = new StringBuilder();
+            List<ConcurrentPhDTree> stack = new ArrayList<>();
+            stack.add(this);
+            while (!stack.isEmpty()) {
+                ConcurrentPhDTree n = stack.remove(stack.size() - 1);
+                if (n != this) s.append('\n');
+                s.append(n.prof).append(" - ").append(n.phdYear);
+                for (ConcurrentPhDTree child : n.advisees.descendingSet()) {
+                    stack.add(child);
+                }
+            }
+            return s.toString();
+        });
+    }
+}
@@ -0,0 +1,584 @@
+package a4;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A loader for academic genealogies in CSV format. It splits the file into byte ranges
+ * that start and end at line boundaries, memory-maps each range and parses its rows
+ * without splitting strings, possibly on several threads, and then builds the whole
+ * PhDTree in one link phase, so a row may name an advisor who only appears later in
+ * the file.
+ * Each Professor read is the canonical instance of its name, as in Professor.of.
+ * The first row after the header is the root of the tree; its advisor is ignored.
+ * A row whose advisor never appears is dropped with the same message insert prints,
+ * unless the loader keeps such rows for a CsvTail to insert once their advisor arrives.
+ * Rows that would break the class invariant of PhDTree, because they repeat an advisee,
+ * name no advisor or form a cycle of advisors, are dropped and reported once each in
+ * problems(), as CsvTail drops and reports them.
+ */
+public final class CsvLoader {
+    /** The header line that every genealogy file must start with. */
+    public static final String HEADER = "advisee,year,advisor";
+
+    /** The largest number of bytes of the file mapped at once. */
+    private static final int WINDOW = 1 << 30;
+
+    /** The smallest range worth parsing as a separate task, in bytes. */
+    private static final int MIN_RANGE = 1 << 20;
+
+    /** The number of threads that parse ranges of the file. */
+    private final int parallelism;
+
+    /** The number of rows read by the last call of load. */
+    private int rows;
+
+    /** The time taken by the last call of load, in nanoseconds. */
+    private long nanos;
+
+    /** The problems found by the last call of load. */
+    private final List<String> problems = new ArrayList<>();
+
+    /** Whether rows whose advisor never appears are kept in orphans instead of printed. */
+    private boolean keepOrphans;
+
+    /** The rows of the last call of load whose advisor never appeared, if kept. */
+    private final List<Row> orphans = new ArrayList<>();
+
+    /** Whether load stops after the last newline, leaving a partly written last line. */
+    private boolean completeLines;
+
+    /** The position just after the last byte read by the last call of load. */
+    private long end;
+
+    /** Creates: a loader that parses on the calling thread. */
+    public CsvLoader() {
+        this(1);
+    }
+
+    /**
+     * Creates: a loader that parses on parallelism threads of its own ForkJoinPool.
+     * Requires: parallelism >= 1.
+     */
+    public CsvLoader(int parallelism) {
+        assert parallelism >= 1;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns a PhDTree representation of the CSV file named by filename. Throws an
+     * appropriate IOException if there was an error reading or parsing the file.
+     */
+    public PhDTree load(String filename) throws IOException {
+        long start = System.nanoTime();
+        problems.clear();
+        orphans.clear();
+        Range[] ranges;
+        try (FileChannel ch = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            long dataStart = checkHeader(ch);
+            long size = completeLines ? lineEnd(ch, dataStart, ch.size()) : ch.size();
+            ranges = split(ch, dataStart, size);
+            end = ranges.length == 0 ? dataStart : ranges[ranges.length - 1].end;
+            if (parallelism == 1 || ranges.length == 1) {
+                for (Range r : ranges) r.parse(ch);
+            } else {
+                ForkJoinPool pool = new ForkJoinPool(parallelism);
+                try {
+                    pool.invoke(new ParseTask(ch, ranges, 0, ranges.length));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } finally {
+                    pool.shutdown();
+                }
+            }
+        }
+        PhDTree tree = link(ranges);
+        nanos = System.nanoTime() - start;
+        return tree;
+    }
+
+    /** The number of rows read by the last call of load, not counting the header. */
+    public int rows() {
+        return rows;
+    }
+
+    /** The time taken by the last call of load, in nanoseconds. */
+    public long nanos() {
+        return nanos;
+    }
+
+    /** The number of rows per second read by the last call of load. */
+    public double rowsPerSecond() {
+        return nanos == 0 ? 0 : rows * 1e9 / nanos;
+    }
+
+    /**
+     * The rows dropped by the last call of load because they would break the class
+     * invariant of PhDTree, described in the words classInv uses.
+     */
+    public List<String> problems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    /**
+     * Effect: choose whether later calls of load keep the rows whose advisor never
+     * appears in orphans() instead of printing "Not Found Professor" for them.
+     */
+    void keepOrphans(boolean keep) {
+        keepOrphans = keep;
+    }
+
+    /**
+     * Effect: choose whether later calls of load read only up to the last newline of
+     * the file, so that a last line still being written is left for a CsvTail to read
+     * once it is complete, instead of being parsed as a row now.
+     */
+    void completeLines(boolean complete) {
+        completeLines = complete;
+    }
+
+    /**
+     * The rows that the last call of load left out of the tree because their advisor
+     * never appeared, in file order, if keepOrphans(true) was called before it.
+     */
+    List<Row> orphans() {
+        return Collections.unmodifiableList(orphans);
+    }
+
+    /**
+     * The position just after the last byte of the file read by the last call of load:
+     * the end of the file, or, if completeLines(true) was called before it, just after
+     * its last newline.
+     */
+    long end() {
+        return end;
+    }
+
+    /**
+     * Returns the rows of ch from position start to position end, which must both be
+     * at line boundaries, in order. Instead of failing on a row that cannot be parsed,
+     * skips it and adds a description of it to problems.
+     */
+    static List<Row> readRows(FileChannel ch, long start, long end, List<String> problems)
+            throws IOException {
+        Range range = new Range(start, end);
+        range.problems = problems;
+        range.parse(ch);
+        List<Row> rows = new ArrayList<>(range.rows);
+        for (int i = 0; i < range.rows; i++) {
+            rows.add(new Row(range.advisees[i], range.years[i], range.advisors[i]));
+        }
+        return rows;
+    }
+
+    /** Returns a one-line summary of the last call of load. */
+    public String stats() {
+        return String.format("Loaded %d rows in %d ms (%.0f rows/s)",
+                rows, nanos / 1_000_000, rowsPerSecond());
+    }
+
+    /**
+     * Returns the position just after the header line of ch. Throws an IOException
+     * if the file does not start with HEADER.
+     */
+    private static long checkHeader(FileChannel ch) throws IOException {
+        long end = lineStart(ch, 1);
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(end, HEADER.length() + 2));
+        ch.read(buf, 0);
+        String line = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+        if (line.endsWith("\n")) line = line.substring(0, line.length() - 1);
+        if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+        if (end == 0 || !line.equals(HEADER)) {
+            throw new IOException("Invalid file format");
+        }
+        return end;
+    }
+
+    /**
+     * Returns the ranges that the rows of ch from position start to position size are
+     * parsed in, where size is the size of ch or just after a newline. Each range
+     * starts and ends at a line boundary and is at most WINDOW bytes long.
+     */
+    private Range[] split(FileChannel ch, long start, long size) throws IOException {
+        long target = parallelism == 1 ? size - start
+                : Math.max(MIN_RANGE, (size - start) / (4L * parallelism) + 1);
+        target = Math.max(1, Math.min(target, WINDOW));
+        List<Range> ranges = new ArrayList<>();
+        long pos = start;
+        while (pos < size) {
+            long end = lineStart(ch, Math.min(pos + target, size));
+            if (end - pos > WINDOW) {
+                throw new IOException("The row at byte " + pos + " is too long");
+            }
+            ranges.add(new Range(pos, end));
+            pos = end;
+        }
+        return ranges.toArray(new Range[0]);
+    }
+
+    /**
+     * Returns the position just after the last newline of ch between positions from
+     * and to, or from if there is none.
+     */
+    static long lineEnd(FileChannel ch, long from, long to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long q = to;
+        while (q > from) {
+            int n = (int) Math.min(buf.capacity(), q - from);
+            buf.clear().limit(n);
+            long at = q - n;
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, at + buf.position()) < 0) return from;
+            }
+            for (int i = n - 1; i >= 0; i--) {
+                if (buf.get(i) == '\n') return at + i + 1;
+            }
+            q = at;
+        }
+        return from;
+    }
+
+    /**
+     * Returns the first position q >= pos of ch that starts a line, i.e. q is the
+     * size of ch, or 0, or the byte before q is a newline.
+     */
+    private static long lineStart(FileChannel ch, long pos) throws IOException {
+        long size = ch.size();
+        if (pos == 0 || pos >= size) return Math.min(pos, size);
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long q = pos - 1;
+        while (q < size) {
+            buf.clear();
+            int n = ch.read(buf, q);
+            if (n <= 0) break;
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') return q + i + 1;
+            }
+            q += n;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the PhDTree formed by the rows of ranges, in order, rooted at the first
+     * row. Records problems for rows that are dropped to keep the result a tree.
+     */
+    private PhDTree link(Range[] ranges) throws IOException {
+        rows = 0;
+        for (Range r : ranges) rows += r.rows;
+        if (rows == 0) {
+            throw new IOException("The file has no rows");
+        }
+        Professor[] advisees = new Professor[rows];
+        int[] years = new int[rows];
+        Professor[] advisors = new Professor[rows];
+        int n = 0;
+        for (Range r : ranges) {
+            System.arraycopy(r.advisees, 0, advisees, n, r.rows);
+            System.arraycopy(r.years, 0, years, n, r.rows);
+            System.arraycopy(r.advisors, 0, advisors, n, r.rows);
+            n += r.rows;
+        }
+
+        // parent[r] is the row of r's advisor, -1 if there is none, and -2 if r is dropped
+        Map<Professor, Integer> rowOf = new HashMap<>(rows * 4 / 3 + 1);
+        int[] parent = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            if (rowOf.putIfAbsent(advisees[r], r) != null) {
+                parent[r] = -2;
+                problems.add("prof " + advisees[r] + " is not unique");
+            }
+        }
+        parent[0] = -1;
+        int[] firstChild = new int[rows];
+        int[] nextSibling = new int[rows];
+        Arrays.fill(firstChild, -1);
+        for (int r = rows - 1; r > 0; r--) {
+            if (parent[r] == -2) continue;
+            if (advisors[r] == null) {
+                parent[r] = -2;
+                problems.add("prof " + advisees[r] + " has no advisor");
+                continue;
+            }
+            Integer a = rowOf.get(advisors[r]);
+            parent[r] = a == null ? -1 : a;
+            if (a != null) {
+                nextSibling[r] = firstChild[a];
+                firstChild[a] = r;
+            }
+        }
+
+        PhDTree[] nodes = new PhDTree[rows];
+        nodes[0] = new PhDTree(advisees[0], years[0]);
+        int[] queue = new int[rows];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int r = queue[head++];
+            for (int c = firstChild[r]; c >= 0; c = nextSibling[c]) {
+                nodes[c] = nodes[r].attach(advisees[c], years[c]);
+                queue[tail++] = c;
+            }
+        }
+        nodes[0].refreshAggregates();
+
+        findCycles(parent, nodes, advisees);
+        for (int r = 1; r < rows; r++) {
+            if (nodes[r] == null && parent[r] != -2) {
+                if (keepOrphans) orphans.add(new Row(advisees[r], years[r], advisors[r]));
+                else System.out.println("Not Found Professor " + advisors[r]);
+            }
+        }
+        return nodes[0];
+    }
+
+    /**
+     * Effect: record a problem for each row that is not in the tree because it is on
+     * a cycle of advisors, and mark it dropped. parent[r] is the row of r's advisor,
+     * -1 if r has none and -2 if r was dropped; nodes[r] is non-null if r is in the tree.
+     */
+    private void findCycles(int[] parent, PhDTree[] nodes, Professor[] advisees) {
+        // mark[r] is 0 if r is unvisited, the number of the walk that visited r otherwise
+        int[] mark = new int[parent.length];
+        int walk = 0;
+        for (int r = 1; r < parent.length; r++) {
+            if (nodes[r] != null || mark[r] != 0) continue;
+            walk++;
+            int c = r;
+            while (c >= 0 && nodes[c] == null && mark[c] == 0) {
+                mark[c] = walk;
+                c = parent[c];
+            }
+            if (c >= 0 && mark[c] == walk) {
+                int first = c;
+                do {
+                    problems.add("prof " + advisees[c] + " is its own ancestor");
+                    int next = parent[c];
+                    parent[c] = -2;
+                    c = next;
+                } while (c != first);
+            }
+        }
+    }
+
+    /** A ForkJoin task that parses ranges[lo..hi), splitting itself in halves. */
+    private static final class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient FileChannel ch;
+        private final transient Range[] ranges;
+        private final int lo;
+        private final int hi;
+
+        ParseTask(FileChannel ch, Range[] ranges, int lo, int hi) {
+            this.ch = ch;
+            this.ranges = ranges;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ParseTask(ch, ranges, lo, mid), new ParseTask(ch, ranges, mid, hi));
+                return;
+            }
+            try {
+                ranges[lo].parse(ch);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /** One row of a genealogy file. */
+    static final class Row {
+        /** The advisee named in this row. */
+        private final Professor advisee;
+
+        /** The PhD year in this row. */
+        private final int year;
+
+        /** The advisor named in this row, or null if the row names none. */
+        private final Professor advisor;
+
+        Row(Professor advisee, int year, Professor advisor) {
+            this.advisee = advisee;
+            this.year = year;
+            this.advisor = advisor;
+        }
+
+        /** Returns the advisee named in this row. */
+        Professor advisee() {
+            return advisee;
+        }
+
+        /** Returns the PhD year in this row. */
+        int year() {
+            return year;
+        }
+
+        /** Returns the advisor named in this row, or null if the row names none. */
+        Professor advisor() {
+            return advisor;
+        }
+    }
+
+    /** A line-aligned range of the file and the rows parsed from it. */
+    private static final class Range {
+        /** The position of the first byte of this range in the file. */
+        final long start;
+
+        /** The position just after the last byte of this range in the file. */
+        final long end;
+
+        /** The advisee named in each row of this range. */
+        Professor[] advisees = new Professor[256];
+
+        /** The PhD year in each row of this range. */
+        int[] years = new int[256];
+
+        /** The advisor named in each row of this range, or null if the row names none. */
+        Professor[] advisors = new Professor[256];
+
+        /** The number of rows parsed from this range. */
+        int rows;
+
+        /** Scratch space for decoding names. */
+        private byte[] scratch = new byte[64];
+
+        /**
+         * The canonical instance of each name parsed from this range, so a name that
+         * appears in many rows is interned once per range, without touching the shared
+         * pool of Professor.of again.
+         */
+        private final Map<Professor, Professor> canonical = new HashMap<>();
+
+        /**
+         * Where to describe rows that cannot be parsed, which are then skipped, or null
+         * to fail on the first such row.
+         */
+        List<String> problems;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /** Effect: parse the rows of this range of ch. */
+        void parse(FileChannel ch) throws IOException {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            int limit = buf.limit();
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buf.get(lineEnd) != '\n') lineEnd++;
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') lineEnd--;
+                if (lineEnd > lineStart) {
+                    try {
+                        parseRow(buf, lineStart, lineEnd);
+                    } catch (IOException e) {
+                        if (problems == null) throw e;
+                        problems.add(e.getMessage());
+                    }
+                }
+                lineStart = next;
+            }
+        }
+
+        /** Effect: record the row in buf[from..to), which holds no line terminator. */
+        private void parseRow(MappedByteBuffer buf, int from, int to) throws IOException {
+            int comma1 = indexOf(buf, ',', from, to);
+            int comma2 = comma1 < 0 ? -1 : indexOf(buf, ',', comma1 + 1, to);
+            if (comma1 < 0) {
+                throw error(from, "has too few fields");
+            }
+            if (rows == advisees.length) {
+                int n = rows * 2;
+                advisees = Arrays.copyOf(advisees, n);
+                years = Arrays.copyOf(years, n);
+                advisors = Arrays.copyOf(advisors, n);
+            }
+            advisees[rows] = parseName(buf, from, comma1);
+            years[rows] = parseYear(buf, comma1 + 1, comma2 < 0 ? to : comma2);
+            advisors[rows] = comma2 < 0 || comma2 + 1 == to ? null
+                    : parseName(buf, comma2 + 1, to);
+            rows++;
+        }
+
+        /**
+         * Returns the Professor named in buf[from..to): the first name runs up to the
+         * first space and the last name up to the next space or the end of the field.
+         */
+        private Professor parseName(MappedByteBuffer buf, int from, int to) throws IOException {
+            int space = indexOf(buf, ' ', from, to);
+            if (space < 0) {
+                throw error(from, "has a name without a last name");
+            }
+            int lastEnd = indexOf(buf, ' ', space + 1, to);
+            if (lastEnd < 0) lastEnd = to;
+            Professor p = new Professor(decode(buf, from, space), decode(buf, space + 1, lastEnd));
+            Professor c = canonical.get(p);
+            if (c == null) {
+                c = p.intern();
+                canonical.put(c, c);
+            }
+            return c;
+        }
+
+        /** Returns the decimal integer in buf[from..to). */
+        private int parseYear(MappedByteBuffer buf, int from, int to) throws IOException {
+            boolean negative = to > from && buf.get(from) == '-';
+            int i = negative ? from + 1 : from;
+            if (i == to) {
+                throw error(from, "has an invalid year");
+            }
+            int year = 0;
+            for (; i < to; i++) {
+                int d = buf.get(i) - '0';
+                if (d < 0 || d > 9 || year > (Integer.MAX_VALUE - d) / 10) {
+                    throw error(from, "has an invalid year");
+                }
+                year = year * 10 + d;
+            }
+            return negative ? -year : year;
+        }
+
+        /** Returns the UTF-8 string in buf[from..to). */
+        private String decode(MappedByteBuffer buf, int from, int to) {
+            int len = to - from;
+            if (scratch.length < len) scratch = new byte[Math.max(len, scratch.length * 2)];
+            buf.get(from, scratch, 0, len);
+            return new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+
+        /** Returns an IOException about the row containing buf[at]. */
+        private IOException error(int at, String what) {
+            return new IOException("The row near byte " + (start + at) + " " + what);
+        }
+
+        /** Returns the first index of b in buf[from..to), or -1 if there is none. */
+        private static int indexOf(MappedByteBuffer buf, char b, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (buf.get(i) == b) return i;
+            }
+            return -1;
+        }
+    }
+}
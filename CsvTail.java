@@ -0,0 +1,232 @@
+package a4;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+
+/**
+ * A genealogy file in CSV format that is only ever appended to, and the PhDTree read
+ * from it, kept up to date as rows are appended. A CsvTail remembers the position
+ * just after the last complete line it has read; each update reads the complete lines
+ * appended since then, parses only those, and inserts their rows into the tree.
+ *
+ * <p>A row whose advisor is not in the tree yet is parked until a row for the advisor
+ * arrives, and is then inserted right after it, instead of being dropped as insert
+ * would drop it. Rows that would break the class invariant of PhDTree, because they
+ * repeat an advisee or name no advisor, and rows that cannot be parsed, are skipped
+ * and reported in problems().
+ */
+public final class CsvTail {
+    /** The largest number of bytes read and inserted by one update. */
+    private static final int MAX_BATCH = 1 << 24;
+
+    /** The file. */
+    private final Path file;
+
+    /** The tree read from the file. */
+    private final PhDTree tree;
+
+    /** The position just after the last line read from the file. */
+    private long offset;
+
+    /** The parked rows, by the advisor they are waiting for. */
+    private final Map<Professor, List<CsvLoader.Row>> parked = new HashMap<>();
+
+    /** The number of parked rows. */
+    private int parkedRows;
+
+    /** The number of rows read by updates so far. */
+    private long rowsRead;
+
+    /** The number of rows inserted by updates so far, including parked rows. */
+    private long rowsInserted;
+
+    /** The problems found by the last update. */
+    private final List<String> problems = new ArrayList<>();
+
+    /**
+     * Creates: a CsvTail of the file named by filename, whose current complete lines
+     * loader reads into the tree; a last line still being written is read by a later
+     * update, once it is complete. Rows whose advisor is not in the file yet are parked.
+     * Throws an appropriate IOException if there was an error reading or parsing the
+     * file.
+     */
+    public CsvTail(String filename, CsvLoader loader) throws IOException {
+        file = Path.of(filename);
+        loader.keepOrphans(true);
+        loader.completeLines(true);
+        tree = loader.load(filename);
+        offset = loader.end();
+        for (CsvLoader.Row r : loader.orphans()) {
+            park(r);
+        }
+    }
+
+    /** Returns the tree read from the file. */
+    public PhDTree tree() {
+        return tree;
+    }
+
+    /** Returns the position just after the last line read from the file. */
+    public long offset() {
+        return offset;
+    }
+
+    /** Returns the number of rows waiting for their advisor to arrive. */
+    public int parked() {
+        return parkedRows;
+    }
+
+    /**
+     * The rows skipped by the last update, and anything else wrong that it found,
+     * described in the words CsvLoader uses.
+     */
+    public List<String> problems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    /** Returns a one-line summary of the updates so far. */
+    public String stats() {
+        return String.format("Read %d appended rows, inserted %d, %d parked, up to byte %d",
+                rowsRead, rowsInserted, parkedRows, offset);
+    }
+
+    /**
+     * Effect: read up to MAX_BATCH bytes of the complete lines appended to the file
+     * since the last update and insert their rows into the tree, together with the
+     * parked rows they let in. Returns the number of bytes read, which is 0 if nothing
+     * complete was appended. The tree must not be used by another thread meanwhile.
+     * Throws an IOException if the file cannot be read or holds a line longer than
+     * MAX_BATCH bytes.
+     */
+    public long update() throws IOException {
+        problems.clear();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < offset) {
+                problems.add("the file shrank from " + offset + " to " + size
+                        + " bytes; reading on from its new end");
+                offset = size;
+                return 0;
+            }
+            long end = CsvLoader.lineEnd(ch, offset, Math.min(size, offset + MAX_BATCH));
+            if (end == offset) {
+                if (size - offset >= MAX_BATCH) {
+                    throw new IOException("The row at byte " + offset + " is too long");
+                }
+                return 0;
+            }
+            List<CsvLoader.Row> rows = CsvLoader.readRows(ch, offset, end, problems);
+            long read = end - offset;
+            offset = end;
+            rowsRead += rows.size();
+            for (CsvLoader.Row r : rows) {
+                add(r);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Effect: call update whenever the file may have grown, until the current thread is
+     * interrupted, holding lock during each update and calling updated after each one
+     * that read anything. Growth is detected through a WatchService on the file's
+     * directory, and by polling every pollMillis milliseconds in case the WatchService
+     * is not available or misses a change.
+     * Throws an IOException if update does.
+     */
+    public void watch(Lock lock, long pollMillis, Consumer<CsvTail> updated) throws IOException {
+        WatchService watcher = null;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            file.toAbsolutePath().getParent().register(watcher,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException | UnsupportedOperationException e) {
+            if (watcher != null) watcher.close();
+            watcher = null;
+        }
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long read;
+                do {
+                    lock.lock();
+                    try {
+                        read = update();
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (read > 0 || !problems.isEmpty()) updated.accept(this);
+                } while (read > 0);
+                if (watcher == null) {
+                    Thread.sleep(pollMillis);
+                } else {
+                    WatchKey key = watcher.poll(pollMillis, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (watcher != null) watcher.close();
+        }
+    }
+
+    /**
+     * Effect: insert row into the tree if its advisor is there, followed by every
+     * parked row that can then be inserted; park it otherwise. Skips the rows that
+     * would break the class invariant of PhDTree and records them in problems.
+     */
+    private void add(CsvLoader.Row row) {
+        if (row.advisor() == null) {
+            problems.add("prof " + row.advisee() + " has no advisor");
+            return;
+        }
+        if (tree.contains(row.advisee())) {
+            problems.add("prof " + row.advisee() + " is not unique");
+            return;
+        }
+        if (!tree.contains(row.advisor())) {
+            park(row);
+            return;
+        }
+        ArrayDeque<CsvLoader.Row> ready = new ArrayDeque<>();
+        ready.add(row);
+        while (!ready.isEmpty()) {
+            CsvLoader.Row r = ready.poll();
+            if (tree.contains(r.advisee())) {
+                problems.add("prof " + r.advisee() + " is not unique");
+                continue;
+            }
+            tree.insert(r.advisor(), r.advisee(), r.year());
+            rowsInserted++;
+            List<CsvLoader.Row> waiting = parked.remove(r.advisee());
+            if (waiting != null) {
+                parkedRows -= waiting.size();
+                ready.addAll(waiting);
+            }
+        }
+    }
+
+    /** Effect: park row until its advisor is inserted. */
+    private void park(CsvLoader.Row row) {
+        parked.computeIfAbsent(row.advisor(), a -> new ArrayList<>()).add(row);
+        parkedRows++;
+    }
+}
@@ -0,0 +1,106 @@
+package a4;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, laid out as HdrHistogram lays out its
+ * counts: values below SUB_BUCKETS are counted exactly, and each larger power-of-2
+ * range is split into SUB_BUCKETS / 2 buckets of equal width, so every recorded value
+ * is known to within 1 part in SUB_BUCKETS / 2. It takes constant space, and record
+ * is safe to call from several threads at once.
+ */
+final class LatencyHistogram {
+    /** The log base 2 of SUB_BUCKETS. */
+    private static final int SUB_BUCKET_BITS = 7;
+
+    /** The number of buckets holding the values 0 to SUB_BUCKETS - 1, one each. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The largest value recorded exactly as itself; larger ones count as this: about 18 minutes. */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    /** The number of buckets needed to cover 0 to MAX_VALUE. */
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    /** The number of values recorded in each bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** The number of values recorded. */
+    private final LongAdder count = new LongAdder();
+
+    /** The sum of the values recorded. */
+    private final LongAdder total = new LongAdder();
+
+    /** The largest value recorded. */
+    private final AtomicLong max = new AtomicLong();
+
+    /** Returns the bucket of value. Requires: 0 <= value <= MAX_VALUE. */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int sub = (int) (value >>> shift);
+        return SUB_BUCKETS + (shift - 1) * (SUB_BUCKETS / 2) + (sub - SUB_BUCKETS / 2);
+    }
+
+    /** Returns the largest value that falls in bucket i. */
+    private static long highestValue(int i) {
+        if (i < SUB_BUCKETS) return i;
+        int k = i - SUB_BUCKETS;
+        int shift = k / (SUB_BUCKETS / 2) + 1;
+        long sub = k % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /** Effect: record one value of nanos nanoseconds. Negative values count as 0. */
+    void record(long nanos) {
+        long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        total.add(v);
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    /** Returns the number of values recorded. */
+    long count() {
+        return count.sum();
+    }
+
+    /** Returns the mean of the values recorded, or 0 if there are none. */
+    double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : total.sum() / (double) n;
+    }
+
+    /** Returns the largest value recorded, or 0 if there are none. */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns the smallest bucket bound that at least the fraction q of the recorded
+     * values are at or below, or 0 if there are none. Requires: 0 <= q <= 1.
+     */
+    long percentile(double q) {
+        long n = count.sum();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /** Effect: forget every value recorded. */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+}
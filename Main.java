@@ -1,13 +1,26 @@
 package a4;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.management.JMException;
 
 /**
  * The main program of the A4 assignment. It reads an academic genealogy in CSV format and supports
@@ -23,15 +36,86 @@ public class Main {
      */
     public static String csvFileName = "professors.csv";
     /**
-     * The academic genealogy tree
+     * Name of a snapshot file to read the genealogy from instead of the CSV file, or an
+     * empty string to read the CSV file.
      */
-    public static PhDTree professorTree;
+    public static String snapshotFile = "";
+    /**
+     * Name of a snapshot file to write the genealogy to once it is read, or an empty
+     * string to write none.
+     */
+    public static String saveSnapshotFile = "";
+    /**
+     * The academic genealogy tree, or null while a snapshot has not been turned into one.
+     */
+    public static volatile PhDTree professorTree;
+    /**
+     * The snapshot read the genealogy from, or null if it was read from the CSV file.
+     * Commands that it can answer are answered from it without building professorTree.
+     */
+    private static Snapshot snapshot;
+    /**
+     * Whether to report throughput statistics to standard error.
+     */
+    public static boolean reportStats = false;
+    /**
+     * The number of threads that parse the CSV file, and that run commands in batch mode.
+     */
+    public static int loadThreads = 1;
+    /**
+     * Whether to run the commands in batch mode, several at a time, instead of one by one.
+     */
+    public static boolean batchMode = false;
+
+    /**
+     * The port on which to serve commands over TCP instead of reading them, or -1 to
+     * read them.
+     */
+    public static int servePort = -1;
+
+    /**
+     * Whether to keep reading rows appended to the CSV file while commands run.
+     */
+    public static boolean watchMode = false;
+
+    /** How often to check the CSV file for appended rows in watch mode, in milliseconds. */
+    private static final long WATCH_POLL_MILLIS = 1000;
+
+    /**
+     * In watch mode, the lock that commands hold to read professorTree and that the
+     * thread reading appended rows holds to change it; null otherwise.
+     */
+    private static ReadWriteLock treeLock;
+
+    /** The commands other than "exit", whose latencies Metrics records separately. */
+    private static final String[] COMMANDS =
+            {"help", "contains", "size", "advisor", "ancestor", "find", "lineage", "print", "stats",
+             "graduated", "cohorts", "search"};
+
+    /**
+     * The buffered Writer over standard output that commands print through, one for
+     * the whole session. It is flushed after each command, before anything else is
+     * printed.
+     */
+    private static final Writer STDOUT =
+            new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+
+    /** The largest number of professors that the search command prints. */
+    private static final int SEARCH_LIMIT = 10;
+
+    /** The number of commands that batch mode reads and runs together. */
+    private static final int BATCH_CHUNK = 1 << 14;
+
+    /** The number of commands below which a batch task runs them on one thread. */
+    private static final int BATCH_GRAIN = 256;
 
     /**
      * Effect: Print a usage message to standard error.
      */
     public static void usage() {
-        System.err.println("Usage: a4.Main [--help] [-i <input script>] [filename.csv]");
+        System.err.println("Usage: a4.Main [--help] [--stats] [--metrics] [-j <threads>]\n"
+                + "       [--batch] [-i <input script> | --serve <port>]\n"
+                + "       [--snapshot <file.snap> | [--save-snapshot <file.snap>] [--watch] [filename.csv]]");
     }
 
     public static void main(String[] args) {
@@ -40,8 +124,35 @@ public class Main {
             System.exit(1);
         }
         try {
-            professorTree = csvToTree(csvFileName);
-            processCommands();
+            if (watchMode) {
+                professorTree = watchCsv(csvFileName);
+            } else if (snapshotFile.isEmpty()) {
+                professorTree = csvToTree(csvFileName);
+            } else {
+                snapshot = Snapshot.open(snapshotFile);
+            }
+            if (!saveSnapshotFile.isEmpty()) {
+                Snapshot.write(tree(), saveSnapshotFile);
+            }
+            if (professorTree != null) prepare(professorTree);
+            if (Metrics.enabled()) {
+                try {
+                    Metrics.registerMBeans(COMMANDS);
+                    Metrics.registerMBean(ResultCache.bean(() -> {
+                        PhDTree t = professorTree;
+                        return t == null ? null : t.resultCache();
+                    }));
+                } catch (JMException e) {
+                    System.err.println("Could not register metrics MBeans: " + e.getMessage());
+                }
+            }
+            if (servePort >= 0) {
+                new QueryServer(servePort).run();
+            } else if (batchMode) {
+                processBatch();
+            } else {
+                processCommands();
+            }
         } catch (IOException e) {
             System.err.println("Could not read file: " + e.getMessage());
             System.exit(1);
@@ -63,17 +174,74 @@ public class Main {
                 } else {
                     return false;
                 }
+            } else if (args[i].equals("--snapshot") || args[i].equals("--save-snapshot")) {
+                if (i + 1 < args.length) {
+                    if (args[i].equals("--snapshot")) snapshotFile = args[i + 1];
+                    else saveSnapshotFile = args[i + 1];
+                    i++;
+                } else {
+                    return false;
+                }
+            } else if (args[i].equals("-j")) {
+                if (i + 1 < args.length && args[i + 1].matches("[1-9][0-9]*")) {
+                    loadThreads = Integer.parseInt(args[i + 1]);
+                    i++;
+                } else {
+                    return false;
+                }
+            } else if (args[i].equals("--serve")) {
+                if (i + 1 < args.length && args[i + 1].matches("[0-9]{1,5}")
+                        && Integer.parseInt(args[i + 1]) <= 65535) {
+                    servePort = Integer.parseInt(args[i + 1]);
+                    i++;
+                } else {
+                    return false;
+                }
+            } else if (args[i].equals("--watch")) {
+                watchMode = true;
+            } else if (args[i].equals("--batch")) {
+                batchMode = true;
+            } else if (args[i].equals("--metrics")) {
+                Metrics.setEnabled(true);
+            } else if (args[i].equals("--stats")) {
+                reportStats = true;
             } else if (args[i].equals("--help")) {
                 return false;
             } else {
                 break;
             }
         }
-        if (i < args.length) {
+        if (i < args.length && snapshotFile.isEmpty()) {
             csvFileName = args[i];
             i++;
         }
-        return (i == args.length);
+        return (i == args.length) && !(watchMode && !snapshotFile.isEmpty());
+    }
+
+    /** Effect: turn on the indexes and the result cache that commands use on tree. */
+    private static void prepare(PhDTree tree) {
+        tree.useAncestorIndex(true);
+        tree.useResultCache(true);
+    }
+
+    /**
+     * Returns professorTree, first building it from the snapshot if it has not been
+     * built yet. Only the commands that the snapshot cannot answer build it, so a
+     * session that uses only those it can answer never allocates the tree.
+     */
+    private static PhDTree tree() {
+        PhDTree t = professorTree;
+        if (t == null) {
+            synchronized (Main.class) {
+                t = professorTree;
+                if (t == null) {
+                    t = snapshot.toTree();
+                    prepare(t);
+                    professorTree = t;
+                }
+            }
+        }
+        return t;
     }
 
     /**
@@ -82,33 +250,52 @@ public class Main {
      */
     public static PhDTree csvToTree(String filename)
             throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String[] header = reader.readLine().split(","); // skip header line
-            if (!Arrays.equals(header,
-                    new String[]{"advisee","year","advisor"})) {
-                throw new IOException("Invalid file format");
-            }
+        CsvLoader loader = new CsvLoader(loadThreads);
+        PhDTree tree = loader.load(filename);
+        report(loader);
+        return tree;
+    }
 
-            // TODO 1
-            String line = reader.readLine();
-            String[] words = line.split(",");
-            String[] name = words[0].split(" ");
-            Professor root = new Professor(name[0], name[1]);
-            PhDTree myTree = new PhDTree(root, Integer.parseInt(words[1]));
-            line = reader.readLine();
-            while(line != null){
-                words = line.split(",");
-                name = words[0].split(" ");
-                String[] aName = words[2].split(" ");
-                Professor newProf = new Professor(name[0], name[1]);
-                Professor advisor = new Professor(aName[0], aName[1]);
-                myTree.insert(advisor, newProf, Integer.parseInt(words[1]));
-                line = reader.readLine();
-            }
-            return myTree;
+    /** Effect: report the problems, and if asked for, the statistics of loader's last load. */
+    private static void report(CsvLoader loader) {
+        for (String problem : loader.problems()) {
+            System.err.println("Ignored a row: " + problem);
+        }
+        if (reportStats) {
+            System.err.println(loader.stats());
         }
     }
 
+    /**
+     * Returns a PhDTree representation of the CSV file named by filename, as csvToTree
+     * does, and starts a daemon thread that inserts the rows appended to the file from
+     * then on, parking the rows whose advisor has not arrived yet. Throws an
+     * appropriate IOException if there was an error reading the file.
+     */
+    private static PhDTree watchCsv(String filename) throws IOException {
+        CsvLoader loader = new CsvLoader(loadThreads);
+        CsvTail tail = new CsvTail(filename, loader);
+        report(loader);
+        treeLock = new ReentrantReadWriteLock();
+        Thread watcher = new Thread(() -> {
+            try {
+                tail.watch(treeLock.writeLock(), WATCH_POLL_MILLIS, t -> {
+                    for (String problem : t.problems()) {
+                        System.err.println("Ignored a row: " + problem);
+                    }
+                    if (reportStats) {
+                        System.err.println(t.stats());
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Stopped reading appended rows: " + e.getMessage());
+            }
+        }, "csv-tail");
+        watcher.setDaemon(true);
+        watcher.start();
+        return tail.tree();
+    }
+
     /**
      * Effect: Reads commands from a Scanner and executes them. Returns when the "exit" command is
      * read.
@@ -130,39 +317,11 @@ public class Main {
                 System.out.print("Please enter a command: ");
             }
             try {
-                String input = sc.nextLine().trim();
-                String[] cmd = input.split(" +");
-                switch (cmd[0].toLowerCase()) {
-                    case "help":
-                        doHelp();
-                        break;
-                    case "contains":
-                        doContains(cmd);
-                        break;
-                    case "size":
-                        doSize(cmd);
-                        break;
-                    case "advisor":
-                        doAdvisor(cmd);
-                        break;
-                    case "ancestor":
-                        doAncestor(cmd);
-                        break;
-                    case "find":
-                        doFind(cmd);
-                        break;
-                    case "lineage":
-                        doLineage(cmd);
-                        break;
-                    case "print":
-                        doPrint(cmd);
-                        break;
-                    case "exit":
-                        return;
-                    default:
-                        System.out.println(
-                                "This is not a valid command. For help, enter the command \"help\"");
+                String[] cmd = words(sc.nextLine());
+                if (cmd[0].toLowerCase().equals("exit")) {
+                    return;
                 }
+                print(out -> execute(cmd, out));
             } catch (NoSuchElementException exc) {
                 // no more lines on input
                 return;
@@ -170,17 +329,273 @@ public class Main {
         }
     }
 
+    /**
+     * Effect: Reads commands as processCommands does, and executes them with the same
+     * output, but in batch mode: the input is read in large chunks, each chunk's
+     * commands run in parallel on loadThreads threads while the next chunk is read,
+     * and the results are written in input order through one buffered writer.
+     * Reports the number of commands per second to standard error at the end.
+     * Returns when the "exit" command is read or the input ends.
+     */
+    public static void processBatch() {
+        long start = System.nanoTime();
+        long count = 0;
+        ForkJoinPool pool = new ForkJoinPool(loadThreads);
+        try (BufferedReader in = inputFile.isEmpty()
+                ? new BufferedReader(new InputStreamReader(System.in), 1 << 20)
+                : Files.newBufferedReader(Path.of(inputFile))) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 20);
+            List<String> chunk = readChunk(in);
+            while (!chunk.isEmpty()) {
+                boolean exit = chunk.get(chunk.size() - 1) == null;
+                if (exit) chunk.remove(chunk.size() - 1);
+                String[] results = new String[chunk.size()];
+                ForkJoinTask<?> task = pool.submit(new BatchTask(chunk, results, 0, chunk.size()));
+                List<String> next = exit ? List.of() : readChunk(in);
+                task.join();
+                for (String result : results) {
+                    out.write(result);
+                }
+                count += chunk.size();
+                chunk = next;
+            }
+            out.flush();
+        } catch (IOException exc) {
+            System.out.println(exc.getMessage());
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        long nanos = System.nanoTime() - start;
+        System.err.printf("Ran %d commands in %d ms (%.0f commands/s)%n",
+                count, nanos / 1_000_000, count / Math.max(nanos / 1e9, 1e-9));
+    }
+
+    /**
+     * Returns the next lines of in, at most BATCH_CHUNK of them, as a mutable list.
+     * If an "exit" command is among them, the lines end before it and a null is added
+     * at the end instead. Throws an IOException if in cannot be read.
+     */
+    private static List<String> readChunk(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while (lines.size() < BATCH_CHUNK && (line = in.readLine()) != null) {
+            String[] cmd = words(line);
+            if (cmd[0].toLowerCase().equals("exit")) {
+                lines.add(null);
+                break;
+            }
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    /**
+     * A task that executes the commands in lines[lo..hi-1] and stores the output of
+     * each in the same position of results, splitting the range in halves until it is
+     * smaller than BATCH_GRAIN.
+     */
+    private static final class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient List<String> lines;
+        private final String[] results;
+        private final int lo, hi;
+
+        BatchTask(List<String> lines, String[] results, int lo, int hi) {
+            this.lines = lines;
+            this.results = results;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo < BATCH_GRAIN) {
+                StringBuilder out = new StringBuilder();
+                for (int i = lo; i < hi; i++) {
+                    out.setLength(0);
+                    try {
+                        execute(words(lines.get(i)), out);
+                    } catch (IOException exc) {
+                        throw new AssertionError(exc); // a StringBuilder does not throw
+                    }
+                    results[i] = out.toString();
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new BatchTask(lines, results, lo, mid), new BatchTask(lines, results, mid, hi));
+        }
+    }
+
+    /**
+     * Returns the words of line: the runs of characters other than spaces, once
+     * leading and trailing whitespace is removed. An empty line has one empty word.
+     * Gives the same result as line.trim().split(" +") without a regular expression.
+     */
+    static String[] words(String line) {
+        String s = line.trim();
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != ' ' && (i == 0 || s.charAt(i - 1) == ' ')) count++;
+        }
+        if (count == 0) return new String[] {""};
+        String[] words = new String[count];
+        int w = 0;
+        for (int i = 0; i < s.length(); ) {
+            int end = s.indexOf(' ', i);
+            if (end < 0) end = s.length();
+            words[w++] = s.substring(i, end);
+            i = end;
+            while (i < s.length() && s.charAt(i) == ' ') i++;
+        }
+        return words;
+    }
+
+    /**
+     * Effect: execute command cmd, other than "exit", where cmd contains the words in
+     * the command, appending its output to out. Throws an IOException if out does.
+     * Reads but does not change professorTree, so several commands may run at once;
+     * in watch mode, they hold treeLock's read lock to do so. The output is then
+     * rendered into memory and written to out only once the lock is released, so a
+     * slow out, such as the socket of a slow client, does not hold up the thread
+     * reading appended rows, nor the commands queued behind that thread.
+     * Records the time taken in Metrics, if it is enabled.
+     */
+    static void execute(String[] cmd, Appendable out) throws IOException {
+        ReadWriteLock lock = treeLock;
+        if (lock == null) {
+            measure(cmd, out);
+            return;
+        }
+        StringBuilder result = new StringBuilder();
+        lock.readLock().lock();
+        try {
+            measure(cmd, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.append(result);
+    }
+
+    /**
+     * Effect: execute command cmd as execute does, recording its latency if metrics
+     * are enabled.
+     */
+    private static void measure(String[] cmd, Appendable out) throws IOException {
+        String name = cmd[0].toLowerCase();
+        if (!Metrics.enabled()) {
+            dispatch(name, cmd, out);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            dispatch(name, cmd, out);
+        } finally {
+            Metrics.command(Arrays.asList(COMMANDS).contains(name) ? name : "invalid",
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Effect: execute command cmd, whose first word in lower case is name, appending
+     * its output to out. Throws an IOException if out does.
+     */
+    private static void dispatch(String name, String[] cmd, Appendable out) throws IOException {
+        switch (name) {
+            case "help":
+                doHelp(out);
+                break;
+            case "contains":
+                doContains(cmd, out);
+                break;
+            case "size":
+                doSize(cmd, out);
+                break;
+            case "advisor":
+                doAdvisor(cmd, out);
+                break;
+            case "ancestor":
+                doAncestor(cmd, out);
+                break;
+            case "find":
+                doFind(cmd, out);
+                break;
+            case "lineage":
+                doLineage(cmd, out);
+                break;
+            case "print":
+                doPrint(cmd, out);
+                break;
+            case "stats":
+                doStats(cmd, out);
+                break;
+            case "graduated":
+                doGraduated(cmd, out);
+                break;
+            case "cohorts":
+                doCohorts(cmd, out);
+                break;
+            case "search":
+                doSearch(cmd, out);
+                break;
+            default:
+                println(out,
+                        "This is not a valid command. For help, enter the command \"help\"");
+        }
+    }
+
+    /** Output that a command writes to an Appendable. */
+    private interface Output {
+        /** Effect: write the output to out. Throws an IOException if out does. */
+        void writeTo(Appendable out) throws IOException;
+    }
+
+    /**
+     * Effect: write output to standard output through the session's buffer, and flush
+     * it. Output from several threads is written one at a time.
+     */
+    private static void print(Output output) {
+        synchronized (STDOUT) {
+            try {
+                output.writeTo(STDOUT);
+                STDOUT.flush();
+            } catch (IOException exc) {
+                System.out.println(exc.getMessage());
+            }
+        }
+    }
+
+    /** Effect: append s and a line separator to out. Throws an IOException if out does. */
+    private static void println(Appendable out, String s) throws IOException {
+        out.append(s).append(System.lineSeparator());
+    }
+
     /**
      * Effect: Print a message about the command being invalid.
      */
-    private static void invalidCommand(String cmd) {
-        System.out.println("Invalid " + cmd + " command. " +
+    private static void invalidCommand(String cmd, Appendable out) throws IOException {
+        println(out, "Invalid " + cmd + " command. " +
                 "Enter the command \"help\" for information about that command.");
     }
 
+    /** Returns the words of cmd, each followed by a space. */
+    private static String join(String[] cmd) {
+        StringBuilder s = new StringBuilder();
+        for (String m:cmd){
+            s.append(m).append(" ");
+        }
+        return s.toString();
+    }
+
     /** Effect: perform the help command */
     public static void doHelp() {
-        System.out.println("\nhelp\n" +
+        print(Main::doHelp);
+    }
+
+    /** Effect: perform the help command, appending its output to out. */
+    private static void doHelp(Appendable out) throws IOException {
+        println(out, "\nhelp\n" +
                 "contains <firstName> <lastName> : whether this professor is in the PhD tree\n"
                 +
                 "size <firstName> <lastName> : the number of nodes in the tree with the given professor at the root\n"
@@ -192,7 +607,14 @@ public class Main {
                 +
                 "lineage <firstName> <lastName> : the sequence of professors that are related and come before this professor\n"
                 +
-                "print : prints out to the console the entire tree in your .csv file\n" +
+                "print [filename] : prints out to the console, or to the given file, the entire tree in your .csv file\n" +
+                "graduated <firstName> <lastName> <fromYear> <toYear> : the professors in the tree with the given professor at the root who received their PhD in those years\n"
+                +
+                "cohorts <firstName> <lastName> : the number of PhDs of each year in the tree with the given professor at the root\n"
+                +
+                "search <prefix> : the professors whose first or last name starts with the prefix, or whose name is close to it\n"
+                +
+                "stats : operation counts and command latencies, if started with --metrics, and result cache hits\n" +
                 "exit : exit the program\n");
     }
 
@@ -200,21 +622,23 @@ public class Main {
      * Effect: perform the "contains" command, where cmd contains the words in the command.
      */
     public static void doContains(String[] cmd) {
+        print(out -> doContains(cmd, out));
+    }
+
+    /** Effect: perform the "contains" command, appending its output to out. */
+    private static void doContains(String[] cmd, Appendable out) throws IOException {
         // TODO 2
         if (cmd.length !=  3){
-            StringBuilder s = new StringBuilder();
-            for (String m:cmd){
-                s.append(m).append(" ");
-            }
-            invalidCommand(s.toString());
+            invalidCommand(join(cmd), out);
             return;
         }
         Professor p = new Professor(cmd[1], cmd[2]);
-        if (professorTree.contains(p)){
-            System.out.println("This professor is contained in the PhD tree.");
+        boolean found = snapshot != null ? snapshot.contains(p) : tree().contains(p);
+        if (found){
+            println(out, "This professor is contained in the PhD tree.");
         }
         else{
-            System.out.println("This professor is not contained in the PhD tree.");
+            println(out, "This professor is not contained in the PhD tree.");
         }
     }
 
@@ -222,28 +646,35 @@ public class Main {
      * Effect: perform the "size" command, where cmd contains the words in the command.
      */
     public static void doSize(String[] cmd) {
+        print(out -> doSize(cmd, out));
+    }
+
+    /** Effect: perform the "size" command, appending its output to out. */
+    private static void doSize(String[] cmd, Appendable out) throws IOException {
         // TODO 3
         if (cmd.length !=  3 && cmd.length != 1){
-            StringBuilder s = new StringBuilder();
-            for (String m:cmd){
-                s.append(m).append(" ");
-            }
-            invalidCommand(s.toString());
+            invalidCommand(join(cmd), out);
             return;
         }
         Professor p;
         if (cmd.length == 1){
-            p = professorTree.prof();
+            p = snapshot != null ? snapshot.prof(0) : tree().prof();
         }
         else {
             p = new Professor(cmd[1], cmd[2]);
         }
         try {
-            PhDTree myTree = professorTree.findTree(p);
-            int n = myTree.size();
-            System.out.println("The number of nodes in this tree is: " + n + ".");
+            int n;
+            if (snapshot != null) {
+                int node = snapshot.node(p);
+                if (node < 0) throw NotFound.shared();
+                n = snapshot.size(node);
+            } else {
+                n = tree().findTree(p).size();
+            }
+            println(out, "The number of nodes in this tree is: " + n + ".");
         }catch(NotFound exc){
-            System.out.println("This person does not exist in the tree.");
+            println(out, "This person does not exist in the tree.");
         }
 
     }
@@ -252,25 +683,34 @@ public class Main {
      * Effect: perform the "advisor" command, where cmd contains the words in the command.
      */
     public static void doAdvisor(String[] cmd) {
+        print(out -> doAdvisor(cmd, out));
+    }
+
+    /** Effect: perform the "advisor" command, appending its output to out. */
+    private static void doAdvisor(String[] cmd, Appendable out) throws IOException {
         // TODO 4
         if (cmd.length !=  3){
-            StringBuilder s = new StringBuilder();
-            for (String m:cmd){
-                s.append(m).append(" ");
-            }
-            invalidCommand(s.toString());
+            invalidCommand(join(cmd), out);
             return;
         }
         Professor p = new Professor(cmd[1], cmd[2]);
-        if (!professorTree.contains(p)){
-            System.out.println("This professor does not exist in the tree.");
+        boolean found = snapshot != null ? snapshot.contains(p) : tree().contains(p);
+        if (!found){
+            println(out, "This professor does not exist in the tree.");
         }
         else{
             try {
-                Professor advisor = professorTree.findAdvisor(p);
-                System.out.println("The advisor of this advisee is: " + advisor + ".");
+                Professor advisor;
+                if (snapshot != null) {
+                    int node = snapshot.advisor(snapshot.node(p));
+                    if (node < 0) throw NotFound.shared();
+                    advisor = snapshot.prof(node);
+                } else {
+                    advisor = tree().findAdvisor(p);
+                }
+                println(out, "The advisor of this advisee is: " + advisor + ".");
             }catch(NotFound exc){
-                System.out.println("This person does not have an advisor.");
+                println(out, "This person does not have an advisor.");
             }
         }
     }
@@ -279,22 +719,31 @@ public class Main {
      * Effect: perform the "ancestor" command, where cmd contains the words in the command.
      */
     public static void doAncestor(String[] cmd) {
+        print(out -> doAncestor(cmd, out));
+    }
+
+    /** Effect: perform the "ancestor" command, appending its output to out. */
+    private static void doAncestor(String[] cmd, Appendable out) throws IOException {
         // TODO 5
         if (cmd.length !=  5){
-            StringBuilder s = new StringBuilder();
-            for (String m:cmd){
-                s.append(m).append(" ");
-            }
-            invalidCommand(s.toString());
+            invalidCommand(join(cmd), out);
             return;
         }
         Professor p1 = new Professor(cmd[1], cmd[2]);
         Professor p2 = new Professor(cmd[3], cmd[4]);
         try{
-            Professor ancestor = professorTree.commonAncestor(p1, p2);
-            System.out.println("The common ancestor of these scholars is: " + ancestor + ".");
+            Professor ancestor;
+            if (snapshot != null) {
+                int n1 = snapshot.node(p1);
+                int n2 = snapshot.node(p2);
+                if (n1 < 0 || n2 < 0) throw NotFound.shared();
+                ancestor = snapshot.prof(snapshot.commonAncestor(n1, n2));
+            } else {
+                ancestor = tree().commonAncestor(p1, p2);
+            }
+            println(out, "The common ancestor of these scholars is: " + ancestor + ".");
         }catch(NotFound exc){
-            System.out.println("These scholars do not have a common ancestor.");
+            println(out, "These scholars do not have a common ancestor.");
         }
     }
 
@@ -302,61 +751,197 @@ public class Main {
      * Effect: perform the "find" command, where cmd contains the words in the command.
      */
     public static void doFind(String[] cmd) {
+        print(out -> doFind(cmd, out));
+    }
+
+    /** Effect: perform the "find" command, appending its output to out. */
+    private static void doFind(String[] cmd, Appendable out) throws IOException {
         // TODO 6
         if (cmd.length !=  3){
-            StringBuilder s = new StringBuilder();
-            for (String m:cmd){
-                s.append(m).append(" ");
-            }
-            invalidCommand(s.toString());
+            invalidCommand(join(cmd), out);
             return;
         }
         Professor p = new Professor(cmd[1], cmd[2]);
         try{
-            PhDTree myTree = professorTree.findTree(p);
-            System.out.println("The PhDTree with " + p + " at the root is " + myTree + ".");
+            PhDTree myTree = tree().findTree(p);
+            out.append("The PhDTree with " + p + " at the root is ");
+            myTree.writeTo(out);
+            println(out, ".");
         }catch(NotFound exc){
-            System.out.println("This person does not exist in the tree.");
+            println(out, "This person does not exist in the tree.");
         }
     }
 
     /**
      * Effect: perform the "print" command, where cmd contains the words in the command.
+     * With a file name, the tree is written to that file instead of the console.
      */
     public static void doPrint(String[] cmd) {
+        print(out -> doPrint(cmd, out));
+    }
+
+    /** Effect: perform the "print" command, appending its output to out. */
+    private static void doPrint(String[] cmd, Appendable out) throws IOException {
         // TODO 7
-        if (cmd.length !=  1){
-            invalidCommand(cmd[0]);
+        if (cmd.length > 2) {
+            invalidCommand(cmd[0], out);
+            return;
+        }
+        if (cmd.length == 2) {
+            try (Writer file = Files.newBufferedWriter(Path.of(cmd[1]))) {
+                tree().writeVerboseTo(file);
+                file.write(System.lineSeparator());
+            } catch (IOException exc) {
+                println(out, "Could not write file: " + exc.getMessage());
+            }
+            return;
+        }
+        tree().writeVerboseTo(out);
+        out.append(System.lineSeparator());
+    }
+
+    /**
+     * Effect: perform the "stats" command, where cmd contains the words in the command.
+     */
+    public static void doStats(String[] cmd) {
+        print(out -> doStats(cmd, out));
+    }
+
+    /** Effect: perform the "stats" command, appending its output to out. */
+    private static void doStats(String[] cmd, Appendable out) throws IOException {
+        if (cmd.length != 1) {
+            invalidCommand(join(cmd), out);
+            return;
+        }
+        println(out, Metrics.report());
+        PhDTree t = professorTree;
+        if (t != null) println(out, t.resultCacheReport());
+    }
+
+    /**
+     * Effect: perform the "graduated" command, where cmd contains the words in the command.
+     */
+    public static void doGraduated(String[] cmd) {
+        print(out -> doGraduated(cmd, out));
+    }
+
+    /** Effect: perform the "graduated" command, appending its output to out. */
+    private static void doGraduated(String[] cmd, Appendable out) throws IOException {
+        int from;
+        int to;
+        try {
+            if (cmd.length != 5) throw new NumberFormatException();
+            from = Integer.parseInt(cmd[3]);
+            to = Integer.parseInt(cmd[4]);
+        } catch (NumberFormatException exc) {
+            invalidCommand(join(cmd), out);
+            return;
+        }
+        Professor p = new Professor(cmd[1], cmd[2]);
+        try {
+            List<PhDTree> found = tree().findTree(p).inYears(from, to);
+            println(out, "The number of professors in this tree who graduated from " + from
+                    + " to " + to + " is: " + found.size() + ".");
+            for (PhDTree t : found) {
+                println(out, t.prof() + " - " + t.phdYear());
+            }
+        } catch (NotFound exc) {
+            println(out, "This person does not exist in the tree.");
+        }
+    }
+
+    /**
+     * Effect: perform the "cohorts" command, where cmd contains the words in the command.
+     */
+    public static void doCohorts(String[] cmd) {
+        print(out -> doCohorts(cmd, out));
+    }
+
+    /** Effect: perform the "cohorts" command, appending its output to out. */
+    private static void doCohorts(String[] cmd, Appendable out) throws IOException {
+        if (cmd.length != 3) {
+            invalidCommand(join(cmd), out);
             return;
         }
-        System.out.println(professorTree.toStringVerbose());
+        Professor p = new Professor(cmd[1], cmd[2]);
+        try {
+            Map<Integer, Integer> cohorts = tree().findTree(p).cohorts();
+            println(out, "The number of PhDs of each year in this tree is:");
+            for (Map.Entry<Integer, Integer> e : cohorts.entrySet()) {
+                println(out, e.getKey() + ": " + e.getValue());
+            }
+        } catch (NotFound exc) {
+            println(out, "This person does not exist in the tree.");
+        }
+    }
+
+    /**
+     * Effect: perform the "search" command, where cmd contains the words in the command.
+     */
+    public static void doSearch(String[] cmd) {
+        print(out -> doSearch(cmd, out));
+    }
+
+    /**
+     * Effect: perform the "search" command, appending its output to out. The words
+     * after "search" form the prefix. If no name starts with it, the names closest to
+     * it are printed instead.
+     */
+    private static void doSearch(String[] cmd, Appendable out) throws IOException {
+        if (cmd.length < 2) {
+            invalidCommand(join(cmd), out);
+            return;
+        }
+        String prefix = String.join(" ", Arrays.copyOfRange(cmd, 1, cmd.length));
+        List<Professor> found = tree().searchPrefix(prefix, SEARCH_LIMIT);
+        if (!found.isEmpty()) {
+            println(out, "The professors whose names start with \"" + prefix + "\" are:");
+        } else {
+            found = tree().searchFuzzy(prefix, SEARCH_LIMIT);
+            if (found.isEmpty()) {
+                println(out, "No professor's name starts with or is close to \"" + prefix + "\".");
+                return;
+            }
+            println(out, "No professor's name starts with \"" + prefix + "\". The closest are:");
+        }
+        for (Professor p : found) {
+            println(out, p.toString());
+        }
     }
 
     /**
      * Effect: perform the "lineage" command, where cmd contains the words in the command.
      */
     public static void doLineage(String[] cmd) {
+        print(out -> doLineage(cmd, out));
+    }
+
+    /** Effect: perform the "lineage" command, appending its output to out. */
+    private static void doLineage(String[] cmd, Appendable out) throws IOException {
         // TODO 8
         if (cmd.length !=  3){
-            StringBuilder s = new StringBuilder(" ");
-            for (String m:cmd){
-                s.append(m).append(" ");
-            }
-            invalidCommand(s.toString());
+            invalidCommand(" " + join(cmd), out);
             return;
         }
         Professor p = new Professor(cmd[1], cmd[2]);
         try{
-            List<Professor> myList = professorTree.findAcademicLineage(p);
-            System.out.print("The lineage is: ");
-            System.out.print(myList.get(0));
+            List<Professor> myList;
+            if (snapshot != null) {
+                int node = snapshot.node(p);
+                if (node < 0) throw NotFound.shared();
+                myList = snapshot.lineage(node);
+            } else {
+                myList = tree().findAcademicLineage(p);
+            }
+            out.append("The lineage is: ");
+            out.append(myList.get(0).toString());
             for (int i = 1; i < myList.size(); i++){
-                System.out.print("--");
-                System.out.print(myList.get(i));
+                out.append("--");
+                out.append(myList.get(i).toString());
             }
-            System.out.println(".");
+            println(out, ".");
         }catch(NotFound exc){
-            System.out.println("This person does not exist in the tree.");
+            println(out, "This person does not exist in the tree.");
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,297 @@
+package a4;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Opt-in counters of PhDTree operations and latency histograms of Main's commands.
+ * While disabled, which is the default, every hook returns after reading one volatile
+ * flag. Metrics are enabled by the system property "a4.metrics", by Main's --metrics
+ * option or by setEnabled, also through JMX once registerMBeans has been called.
+ *
+ * <p>For each Operation, Metrics counts calls. It also counts the nodes that
+ * operations visit, where a node found through the tree's index counts as one, and
+ * the NotFound exceptions thrown. For each command it records a LatencyHistogram.
+ */
+public final class Metrics {
+    /** The operations of PhDTree that are counted. */
+    public enum Operation {
+        CONTAINS("contains"),
+        FIND_TREE("findTree"),
+        FIND_ADVISOR("findAdvisor"),
+        FIND_ACADEMIC_LINEAGE("findAcademicLineage"),
+        COMMON_ANCESTOR("commonAncestor"),
+        INSERT("insert"),
+        SIZE("size"),
+        MAX_DEPTH("maxDepth"),
+        NUM_ADVISEES("numAdvisees"),
+        TO_STRING("toString"),
+        TO_STRING_VERBOSE("toStringVerbose");
+
+        /** The name of the operation as it is reported. */
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /** The operation counters and the totals of Metrics, as seen through JMX. */
+    public interface OperationsMXBean {
+        /** Returns whether metrics are being collected. */
+        boolean isEnabled();
+
+        /** Effect: start or stop collecting metrics. */
+        void setEnabled(boolean enabled);
+
+        /** Returns the number of calls of each operation, by name. */
+        Map<String, Long> getCalls();
+
+        /** Returns the number of nodes visited by operations. */
+        long getNodesVisited();
+
+        /** Returns the number of NotFound exceptions thrown. */
+        long getNotFound();
+
+        /** Effect: set every counter and histogram back to zero. */
+        void reset();
+    }
+
+    /** The entries, hits and misses of a PhDTree's result cache, as seen through JMX. */
+    public interface ResultCacheMXBean {
+        /** Returns the number of cached results, or 0 if results are not cached. */
+        int getEntries();
+
+        /** Returns the number of hits of each kind of query, by name. */
+        Map<String, Long> getHits();
+
+        /** Returns the number of misses of each kind of query, by name. */
+        Map<String, Long> getMisses();
+
+        /** Effect: evict every cached result. The counts of hits and misses are kept. */
+        void clear();
+    }
+
+    /** The latencies of one command of Main, in microseconds, as seen through JMX. */
+    public interface CommandLatencyMXBean {
+        long getCount();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    /** Whether metrics are being collected. */
+    private static volatile boolean enabled = Boolean.getBoolean("a4.metrics");
+
+    /** The number of calls of each operation. */
+    private static final Map<Operation, LongAdder> CALLS = new EnumMap<>(Operation.class);
+
+    static {
+        for (Operation op : Operation.values()) {
+            CALLS.put(op, new LongAdder());
+        }
+    }
+
+    /** The number of nodes visited by operations. */
+    private static final LongAdder VISITED = new LongAdder();
+
+    /** The number of NotFound exceptions thrown. */
+    private static final LongAdder NOT_FOUND = new LongAdder();
+
+    /** The latencies of each command, by name. */
+    private static final Map<String, LatencyHistogram> COMMANDS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /** Returns whether metrics are being collected. */
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /** Effect: start or stop collecting metrics. Numbers collected so far are kept. */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /** Effect: count a call of op if metrics are enabled. */
+    static void count(Operation op) {
+        if (enabled) CALLS.get(op).increment();
+    }
+
+    /** Effect: count nodes visited nodes if metrics are enabled. */
+    static void visited(long nodes) {
+        if (enabled) VISITED.add(nodes);
+    }
+
+    /** Effect: count a NotFound thrown if metrics are enabled. */
+    static void notFound() {
+        if (enabled) NOT_FOUND.increment();
+    }
+
+    /** Effect: record that command took nanos nanoseconds, if metrics are enabled. */
+    static void command(String command, long nanos) {
+        if (enabled) COMMANDS.computeIfAbsent(command, c -> new LatencyHistogram()).record(nanos);
+    }
+
+    /** Returns the number of calls of op so far. */
+    public static long calls(Operation op) {
+        return CALLS.get(op).sum();
+    }
+
+    /** Returns the number of nodes visited by operations so far. */
+    public static long nodesVisited() {
+        return VISITED.sum();
+    }
+
+    /** Returns the number of NotFound exceptions thrown so far. */
+    public static long notFoundCount() {
+        return NOT_FOUND.sum();
+    }
+
+    /** Effect: set every counter and histogram back to zero. */
+    public static void reset() {
+        for (LongAdder a : CALLS.values()) {
+            a.reset();
+        }
+        VISITED.reset();
+        NOT_FOUND.reset();
+        for (LatencyHistogram h : COMMANDS.values()) {
+            h.reset();
+        }
+    }
+
+    /**
+     * Returns a multi-line report of every counter, and of every histogram that has
+     * recorded something, as the stats command prints.
+     */
+    public static String report() {
+        StringBuilder s = new StringBuilder();
+        s.append("Metrics are ").append(enabled ? "enabled" : "disabled").append('\n');
+        s.append("Operation calls:");
+        for (Operation op : Operation.values()) {
+            s.append(' ').append(op).append('=').append(calls(op));
+        }
+        s.append('\n');
+        s.append("Nodes visited: ").append(nodesVisited()).append('\n');
+        s.append("NotFound thrown: ").append(notFoundCount()).append('\n');
+        s.append(String.format(Locale.ROOT, "%-10s %10s %10s %10s %10s %10s %10s%n",
+                "command", "count", "mean us", "p50 us", "p99 us", "p99.9 us", "max us"));
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(COMMANDS).entrySet()) {
+            LatencyHistogram h = e.getValue();
+            if (h.count() == 0) continue;
+            s.append(String.format(Locale.ROOT, "%-10s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    e.getKey(), h.count(), h.mean() / 1e3, h.percentile(0.5) / 1e3,
+                    h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max() / 1e3));
+        }
+        return s.toString().trim();
+    }
+
+    /**
+     * Effect: register MBeans with the platform MBean server: a4:type=Operations for the
+     * counters, and a4:type=CommandLatency,name=c for each command c in commands.
+     * Throws a JMException if registration fails, for example because it was done before.
+     */
+    public static void registerMBeans(String... commands) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new OperationsMXBean() {
+            @Override
+            public boolean isEnabled() {
+                return enabled();
+            }
+
+            @Override
+            public void setEnabled(boolean on) {
+                Metrics.setEnabled(on);
+            }
+
+            @Override
+            public Map<String, Long> getCalls() {
+                Map<String, Long> calls = new LinkedHashMap<>();
+                for (Operation op : Operation.values()) {
+                    calls.put(op.toString(), calls(op));
+                }
+                return calls;
+            }
+
+            @Override
+            public long getNodesVisited() {
+                return nodesVisited();
+            }
+
+            @Override
+            public long getNotFound() {
+                return notFoundCount();
+            }
+
+            @Override
+            public void reset() {
+                Metrics.reset();
+            }
+        }, new ObjectName("a4:type=Operations"));
+        for (String command : commands) {
+            LatencyHistogram h = COMMANDS.computeIfAbsent(command, c -> new LatencyHistogram());
+            server.registerMBean(new CommandLatencyMXBean() {
+                @Override
+                public long getCount() {
+                    return h.count();
+                }
+
+                @Override
+                public double getMeanMicros() {
+                    return h.mean() / 1e3;
+                }
+
+                @Override
+                public double getP50Micros() {
+                    return h.percentile(0.5) / 1e3;
+                }
+
+                @Override
+                public double getP99Micros() {
+                    return h.percentile(0.99) / 1e3;
+                }
+
+                @Override
+                public double getP999Micros() {
+                    return h.percentile(0.999) / 1e3;
+                }
+
+                @Override
+                public double getMaxMicros() {
+                    return h.max() / 1e3;
+                }
+            }, new ObjectName("a4:type=CommandLatency,name=" + ObjectName.quote(command)));
+        }
+    }
+
+    /**
+     * Effect: register bean with the platform MBean server as a4:type=ResultCache.
+     * Throws a JMException if registration fails, for example because it was done before.
+     */
+    public static void registerMBean(ResultCacheMXBean bean) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(bean,
+                new ObjectName("a4:type=ResultCache"));
+    }
+}
@@ -0,0 +1,258 @@
+package a4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * An index of the names of all professors in a PhDTree, for finding professors from
+ * part of a name or a misspelled one. Names are compared ignoring case.
+ *
+ * <p>Prefix search uses a sorted array holding each name twice, as "first last" and
+ * as "last first", so a prefix of either name matches by binary search.
+ *
+ * <p>Fuzzy search finds the names "first last" within a small edit distance of the
+ * query. It uses an inverted index from each trigram (three consecutive characters of
+ * the name, padded at both ends) to the names containing it. One edit changes at most
+ * three trigrams, so a name within distance k of a query shares at least one of any
+ * 3k + 1 distinct trigrams of the query. Only the names listed under the query's 3k + 1
+ * rarest trigrams are compared with it. A NameIndex describes the tree as it was when
+ * built; it does not follow inserts.
+ */
+final class NameIndex {
+    /** The character used to pad names before they are split into trigrams. */
+    private static final char PAD = '\u0000';
+
+    /** The modCount of the tree index when this was built. */
+    private final int modCount;
+
+    /** The professors, by number. */
+    private final Professor[] profs;
+
+    /** The normalized name "first last" of each professor, by number. */
+    private final String[] names;
+
+    /** The prefix keys, sorted: "first last" and "last first" of each professor. */
+    private final String[] keys;
+
+    /** The number of the professor of each key. */
+    private final int[] keyProf;
+
+    /** The distinct trigram codes, sorted. */
+    private final int[] grams;
+
+    /**
+     * The professors whose names contain each trigram: those of grams[g] are
+     * postings[gramStart[g]] to postings[gramStart[g + 1] - 1].
+     */
+    private final int[] gramStart, postings;
+
+    /** Creates: the index of every professor currently in index. */
+    NameIndex(TreeIndex index) {
+        modCount = index.modCount();
+        int n = index.size();
+        profs = new Professor[n];
+        names = new String[n];
+        for (int i = 0; i < n; i++) {
+            profs[i] = index.node(i).prof();
+            names[i] = normalize(profs[i].firstName() + " " + profs[i].lastName());
+        }
+
+        Integer[] order = new Integer[2 * n];
+        String[] unsorted = new String[2 * n];
+        for (int i = 0; i < n; i++) {
+            unsorted[2 * i] = names[i];
+            unsorted[2 * i + 1] = normalize(profs[i].lastName() + " " + profs[i].firstName());
+            order[2 * i] = 2 * i;
+            order[2 * i + 1] = 2 * i + 1;
+        }
+        Arrays.sort(order, Comparator.comparing(k -> unsorted[k]));
+        keys = new String[2 * n];
+        keyProf = new int[2 * n];
+        for (int i = 0; i < 2 * n; i++) {
+            keys[i] = unsorted[order[i]];
+            keyProf[i] = order[i] / 2;
+        }
+
+        // every (trigram, professor) pair, packed into a long and sorted
+        int pairs = 0;
+        for (String name : names) pairs += name.length() + 1;
+        long[] packed = new long[pairs];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            for (int g : trigrams(names[i])) {
+                packed[m++] = ((long) g << 32) | i;
+            }
+        }
+        Arrays.sort(packed);
+        int distinct = 0;
+        int[] codes = new int[m];
+        int[] starts = new int[m + 1];
+        int[] ids = new int[m];
+        int count = 0;
+        for (int j = 0; j < m; j++) {
+            int g = (int) (packed[j] >>> 32);
+            int id = (int) packed[j];
+            if (distinct == 0 || codes[distinct - 1] != g) {
+                codes[distinct] = g;
+                starts[distinct++] = count;
+            } else if (ids[count - 1] == id) {
+                continue; // the same trigram twice in one name
+            }
+            ids[count++] = id;
+        }
+        starts[distinct] = count;
+        grams = Arrays.copyOf(codes, distinct);
+        gramStart = Arrays.copyOf(starts, distinct + 1);
+        postings = Arrays.copyOf(ids, count);
+    }
+
+    /** Returns the modCount of the tree index when this was built. */
+    int modCount() {
+        return modCount;
+    }
+
+    /** Returns s in lower case, trimmed, with each run of spaces made one space. */
+    static String normalize(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (String w : Main.words(s.toLowerCase(Locale.ROOT))) {
+            if (b.length() > 0) b.append(' ');
+            b.append(w);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Returns the codes of the trigrams of name padded with two PADs in front and one
+     * behind, in order, with repeats: one per character of name, and one more. Unlike
+     * trigrams, codes may collide; that only makes a search compare a few more names.
+     */
+    private static int[] trigrams(String name) {
+        int[] result = new int[name.length() + 1];
+        char a = PAD;
+        char b = PAD;
+        for (int i = 0; i <= name.length(); i++) {
+            char c = i < name.length() ? name.charAt(i) : PAD;
+            result[i] = (a * 65599 + b) * 65599 + c;
+            a = b;
+            b = c;
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to limit professors, in alphabetical order of the matching name, whose
+     * first or last name starts with prefix, or whose "first last" or "last first"
+     * does, ignoring case, and who satisfy keep.
+     */
+    List<Professor> prefix(String prefix, int limit, Predicate<Professor> keep) {
+        String p = normalize(prefix);
+        List<Professor> result = new ArrayList<>();
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(p) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        for (int i = lo; i < keys.length && result.size() < limit && keys[i].startsWith(p); i++) {
+            Professor prof = profs[keyProf[i]];
+            // a professor may match by both of their keys; result is short, so scan it
+            if (result.contains(prof) || !keep.test(prof)) continue;
+            result.add(prof);
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to limit professors who satisfy keep and whose name "first last" is
+     * within edit distance k of name, ignoring case, where k is 2 for long names and
+     * less for short ones, whose trigrams say too little. They are ordered by distance,
+     * then by how close the length of their name is, and then alphabetically.
+     */
+    List<Professor> fuzzy(String name, int limit, Predicate<Professor> keep) {
+        String q = normalize(name);
+        int[] distinctGrams = Arrays.stream(trigrams(q)).distinct().toArray();
+        int k = 2;
+        while (k > 0 && distinctGrams.length < 3 * k + 1) k--;
+        if (k == 0) return new ArrayList<>();
+
+        Integer[] byRarity = new Integer[distinctGrams.length];
+        int[] sizes = new int[distinctGrams.length];
+        for (int i = 0; i < distinctGrams.length; i++) {
+            byRarity[i] = i;
+            int g = Arrays.binarySearch(grams, distinctGrams[i]);
+            sizes[i] = g < 0 ? 0 : gramStart[g + 1] - gramStart[g];
+        }
+        Arrays.sort(byRarity, Comparator.comparingInt(i -> sizes[i]));
+
+        // the professors under the rarest trigrams whose names have a length within k
+        int total = 0;
+        for (int r = 0; r < 3 * k + 1; r++) total += sizes[byRarity[r]];
+        int[] candidates = new int[total];
+        int c = 0;
+        for (int r = 0; r < 3 * k + 1; r++) {
+            int g = Arrays.binarySearch(grams, distinctGrams[byRarity[r]]);
+            if (g < 0) continue;
+            for (int j = gramStart[g]; j < gramStart[g + 1]; j++) {
+                if (Math.abs(names[postings[j]].length() - q.length()) <= k) {
+                    candidates[c++] = postings[j];
+                }
+            }
+        }
+        Arrays.sort(candidates, 0, c);
+
+        List<int[]> matches = new ArrayList<>(); // {professor, distance}
+        for (int i = 0; i < c; i++) {
+            int id = candidates[i];
+            if (i > 0 && candidates[i - 1] == id) continue;
+            int d = distance(q, names[id], k);
+            if (d <= k && keep.test(profs[id])) matches.add(new int[] {id, d});
+        }
+        matches.sort(Comparator.<int[]>comparingInt(e -> e[1])
+                .thenComparingInt(e -> Math.abs(names[e[0]].length() - q.length()))
+                .thenComparing(e -> names[e[0]]));
+        List<Professor> result = new ArrayList<>();
+        for (int i = 0; i < matches.size() && i < limit; i++) {
+            result.add(profs[matches.get(i)[0]]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the Levenshtein distance between a and b if it is at most k, and
+     * otherwise some number greater than k. Takes time O(k * length of a).
+     */
+    static int distance(String a, String b, int k) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > k) return k + 1;
+        int big = k + 1;
+        int[] prev = new int[m + 1];
+        int[] cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) prev[j] = j <= k ? j : big;
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - k);
+            int to = Math.min(m, i + k);
+            cur[0] = i <= k ? i : big;
+            if (from > 1) cur[from - 1] = big;
+            int best = cur[0];
+            for (int j = from; j <= to; j++) {
+                int sub = prev[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                int del = prev[j] + 1;
+                int ins = cur[j - 1] + 1;
+                cur[j] = Math.min(big, Math.min(sub, Math.min(del, ins)));
+                best = Math.min(best, cur[j]);
+            }
+            if (to < m) cur[to + 1] = big;
+            if (best > k) return big;
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[m];
+    }
+}
@@ -2,5 +2,26 @@ package a4;
 
 /** An exception representing failure to find something. */
 public class NotFound extends Exception {
+    private static final long serialVersionUID = 1L;
 
+    /**
+     * A shared instance without a stack trace, thrown by lookups that fail often,
+     * so that failing costs no allocation.
+     */
+    private static final NotFound SHARED = new NotFound(false);
+
+    /** Creates: a new NotFound with a stack trace. */
+    public NotFound() {
+    }
+
+    /** Creates: a new NotFound, with a stack trace iff writableStackTrace. */
+    private NotFound(boolean writableStackTrace) {
+        super(null, null, false, writableStackTrace);
+    }
+
+    /** Returns a shared NotFound without a stack trace, to be thrown. Counted by Metrics. */
+    public static NotFound shared() {
+        Metrics.notFound();
+        return SHARED;
+    }
 }
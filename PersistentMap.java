@@ -0,0 +1,171 @@
+package a4;
+
+import java.util.Arrays;
+
+/**
+ * An immutable hash map in which put returns a new map and leaves this one as it was.
+ * It is a hash array mapped trie: each level consumes five bits of the hash, so a put
+ * copies only the O(log n) trie nodes on the path to its key and shares the rest.
+ * Keys and values must not be null.
+ */
+final class PersistentMap<K, V> {
+    /** The number of hash bits consumed by each level of the trie. */
+    private static final int BITS = 5;
+
+    /** The map with no entries. */
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    /**
+     * A trie node holding one slot for each set bit of bitmap, in bit order. Slot i
+     * is array[2i] and array[2i + 1]: either a key and its value, or null and the
+     * trie node (a Bitmap or a Collision) for the hashes that share the bits so far.
+     */
+    private static final class Bitmap {
+        final int bitmap;
+        final Object[] array;
+
+        Bitmap(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+    }
+
+    /** The keys and values, alternating, of distinct keys with the same hash. */
+    private static final class Collision {
+        final int hash;
+        final Object[] array;
+
+        Collision(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+    }
+
+    /** The top trie node, or null if the map is empty. */
+    private final Bitmap root;
+
+    /** The number of entries. */
+    private final int size;
+
+    private PersistentMap(Bitmap root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /** Returns the map with no entries. */
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /** Returns the number of entries in this map. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the hash of key used by the trie. */
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /** Returns the value of key in this map, or null if key is not in it. */
+    @SuppressWarnings("unchecked")
+    V get(K key) {
+        int hash = hash(key);
+        Object node = root;
+        for (int shift = 0; node != null; shift += BITS) {
+            if (node instanceof Collision) {
+                Object[] a = ((Collision) node).array;
+                for (int i = 0; i < a.length; i += 2) {
+                    if (a[i].equals(key)) return (V) a[i + 1];
+                }
+                return null;
+            }
+            Bitmap b = (Bitmap) node;
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((b.bitmap & bit) == 0) return null;
+            int i = 2 * Integer.bitCount(b.bitmap & (bit - 1));
+            Object k = b.array[i];
+            if (k != null) return k.equals(key) ? (V) b.array[i + 1] : null;
+            node = b.array[i + 1];
+        }
+        return null;
+    }
+
+    /** Returns true if key is in this map. */
+    boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Returns a map with the entries of this one, except that key maps to value.
+     * This map is unchanged.
+     */
+    PersistentMap<K, V> put(K key, V value) {
+        assert key != null && value != null;
+        V old = get(key);
+        if (old == value) return this;
+        Bitmap top = root == null ? new Bitmap(0, new Object[0]) : root;
+        return new PersistentMap<>((Bitmap) put(top, hash(key), 0, key, value),
+                old == null ? size + 1 : size);
+    }
+
+    /** Returns a copy of node, at the level that starts at bit shift, with key mapped to value. */
+    private static Object put(Object node, int hash, int shift, Object key, Object value) {
+        if (node instanceof Collision) {
+            Object[] a = ((Collision) node).array;
+            for (int i = 0; i < a.length; i += 2) {
+                if (a[i].equals(key)) {
+                    Object[] copy = a.clone();
+                    copy[i + 1] = value;
+                    return new Collision(hash, copy);
+                }
+            }
+            Object[] copy = Arrays.copyOf(a, a.length + 2);
+            copy[a.length] = key;
+            copy[a.length + 1] = value;
+            return new Collision(hash, copy);
+        }
+        Bitmap b = (Bitmap) node;
+        int bit = 1 << ((hash >>> shift) & 31);
+        int i = 2 * Integer.bitCount(b.bitmap & (bit - 1));
+        if ((b.bitmap & bit) == 0) {
+            Object[] copy = new Object[b.array.length + 2];
+            System.arraycopy(b.array, 0, copy, 0, i);
+            copy[i] = key;
+            copy[i + 1] = value;
+            System.arraycopy(b.array, i, copy, i + 2, b.array.length - i);
+            return new Bitmap(b.bitmap | bit, copy);
+        }
+        Object k = b.array[i];
+        Object[] copy = b.array.clone();
+        if (k == null) {
+            copy[i + 1] = put(b.array[i + 1], hash, shift + BITS, key, value);
+        } else if (k.equals(key)) {
+            copy[i + 1] = value;
+        } else {
+            copy[i] = null;
+            copy[i + 1] = pair(k, b.array[i + 1], hash(k), key, value, hash, shift + BITS);
+        }
+        return new Bitmap(b.bitmap, copy);
+    }
+
+    /**
+     * Returns a trie node, at the level that starts at bit shift, holding just the
+     * distinct keys k1 and k2 with their values and hashes.
+     */
+    private static Object pair(Object k1, Object v1, int h1, Object k2, Object v2, int h2, int shift) {
+        if (shift >= 32) {
+            return new Collision(h1, new Object[] {k1, v1, k2, v2});
+        }
+        int b1 = (h1 >>> shift) & 31;
+        int b2 = (h2 >>> shift) & 31;
+        if (b1 == b2) {
+            return new Bitmap(1 << b1, new Object[] {null, pair(k1, v1, h1, k2, v2, h2, shift + BITS)});
+        }
+        return b1 < b2
+                ? new Bitmap((1 << b1) | (1 << b2), new Object[] {k1, v1, k2, v2})
+                : new Bitmap((1 << b1) | (1 << b2), new Object[] {k2, v2, k1, v1});
+    }
+}
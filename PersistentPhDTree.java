@@ -0,0 +1,319 @@
+package a4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable PhDTree. insert does not change the tree it is called on: it returns a
+ * new version that copies only the nodes on the path from the root to the new node's
+ * advisor, with their arrays of advisees, and shares every other subtree with the old
+ * version. Every version answers
+ * the same queries as PhDTree, so a report can keep using the version it started on
+ * while inserts continue, and a version is reclaimed once nothing refers to it.
+ *
+ * <p>Nodes hold no advisor pointers, since those would have to be copied with every
+ * subtree. Instead each version has a PersistentMap from each Professor to their
+ * advisor, which an insert also updates by path copying. Lookups climb that map to
+ * find the path from the root and then follow it down through the advisees.
+ */
+public final class PersistentPhDTree {
+    /** An immutable node: a Professor, their advisees and the aggregates of the subtree. */
+    private static final class Node {
+        final Professor prof;
+        final int phdYear;
+        /** The advisees, sorted by Professor. */
+        final Node[] advisees;
+        final int size, height;
+
+        Node(Professor prof, int phdYear, Node[] advisees) {
+            this.prof = prof;
+            this.phdYear = phdYear;
+            this.advisees = advisees;
+            int s = 1;
+            int h = 0;
+            for (Node child : advisees) {
+                s += child.size;
+                h = Math.max(h, child.height + 1);
+            }
+            size = s;
+            height = h;
+        }
+
+        /** Returns the position of the advisee holding p, or -(insertion point) - 1. */
+        int indexOf(Professor p) {
+            int lo = 0;
+            int hi = advisees.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = advisees[mid].prof.compareTo(p);
+                if (c < 0) lo = mid + 1;
+                else if (c > 0) hi = mid - 1;
+                else return mid;
+            }
+            return -lo - 1;
+        }
+    }
+
+    /** The node at the root of this tree. */
+    private final Node root;
+
+    /** The Professor at the root of the whole version this tree was found in. */
+    private final Professor top;
+
+    /** The advisor of every Professor in that version except top. */
+    private final PersistentMap<Professor, Professor> advisors;
+
+    /** Creates: a new PersistentPhDTree with root Professor p and no children. */
+    public PersistentPhDTree(Professor p, int year) {
+        this(new Node(p, year, new Node[0]), p, PersistentMap.empty());
+        assert classInv();
+    }
+
+    private PersistentPhDTree(Node root, Professor top, PersistentMap<Professor, Professor> advisors) {
+        this.root = root;
+        this.top = top;
+        this.advisors = advisors;
+    }
+
+    /**
+     * Returns a PersistentPhDTree with the same nodes as the subtree rooted at tree.
+     * Requires: tree does not change meanwhile.
+     */
+    public static PersistentPhDTree of(PhDTree tree) {
+        Map<PhDTree, Node> built = new HashMap<>();
+        PersistentMap<Professor, Professor> advisors = PersistentMap.empty();
+        for (PhDTree n : tree.postOrder()) {
+            Node[] advisees = new Node[n.numAdvisees()];
+            int i = 0;
+            for (PhDTree child : n.advisees()) {
+                advisees[i++] = built.remove(child);
+                advisors = advisors.put(child.prof(), n.prof());
+            }
+            built.put(n, new Node(n.prof(), n.phdYear(), advisees));
+        }
+        PersistentPhDTree result = new PersistentPhDTree(built.get(tree), tree.prof(), advisors);
+        assert result.classInv();
+        return result;
+    }
+
+    /** Returns false or throws an assertion error if the class invariant does
+     *  not hold for this tree: each Professor is in it once, advisees are sorted,
+     *  the advisor map agrees with the tree, and the aggregates are correct.
+     */
+    boolean classInv() {
+        Set<Professor> seen = new HashSet<>();
+        List<Node> stack = new ArrayList<>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            assert seen.add(n.prof) : "prof " + n.prof + " is not unique";
+            assert n.prof.equals(top) == (advisors.get(n.prof) == null)
+                    : "prof " + n.prof + " has the wrong advisor";
+            int s = 1;
+            int h = 0;
+            for (int i = 0; i < n.advisees.length; i++) {
+                Node child = n.advisees[i];
+                assert i == 0 || n.advisees[i - 1].prof.compareTo(child.prof) < 0
+                        : "advisees of prof " + n.prof + " are out of order";
+                assert n.prof.equals(advisors.get(child.prof))
+                        : "prof " + child.prof + " has the wrong advisor";
+                s += child.size;
+                h = Math.max(h, child.height + 1);
+                stack.add(child);
+            }
+            assert n.size == s : "prof " + n.prof + " has cached size " + n.size + " but " + s + " nodes";
+            assert n.height == h : "prof " + n.prof + " has cached height " + n.height + " but " + h + " levels";
+        }
+        return true;
+    }
+
+    /**
+     * Returns the nodes from the root of this tree down to the node holding p, or null
+     * if p is not in this tree. Takes time proportional to the depth of p.
+     */
+    private Node[] path(Professor p) {
+        List<Professor> up = new ArrayList<>();
+        Professor q = p;
+        while (!q.equals(root.prof)) {
+            up.add(q);
+            q = advisors.get(q);
+            if (q == null) return null;
+        }
+        Node[] path = new Node[up.size() + 1];
+        path[0] = root;
+        for (int i = 1; i < path.length; i++) {
+            Node parent = path[i - 1];
+            int j = parent.indexOf(up.get(up.size() - i));
+            if (j < 0) return null;
+            path[i] = parent.advisees[j];
+        }
+        return path;
+    }
+
+    /** The Professor at the root of this tree. */
+    public Professor prof() {
+        return root.prof;
+    }
+
+    /** The year in which the Professor at the root of this tree was awarded their PhD. */
+    public int phdYear() {
+        return root.phdYear;
+    }
+
+    /** The number of direct advisees of the professor at the root of this tree. */
+    public int numAdvisees() {
+        return root.advisees.length;
+    }
+
+    /** Returns the number of nodes in this tree. Takes constant time. */
+    public int size() {
+        return root.size;
+    }
+
+    /**
+     * The maximum depth of this tree, i.e. the longest path from the root to a leaf.
+     * Takes constant time.
+     */
+    public int maxDepth() {
+        return root.height;
+    }
+
+    /** Returns true if this tree contains a node with Professor p. */
+    public boolean contains(Professor p) {
+        return path(p) != null;
+    }
+
+    /**
+     * Returns the subtree with p at the root. Throws NotFound
+     * if p is not in the tree.
+     */
+    public PersistentPhDTree findTree(Professor p) throws NotFound {
+        Node[] path = path(p);
+        if (path == null) throw NotFound.shared();
+        return new PersistentPhDTree(path[path.length - 1], top, advisors);
+    }
+
+    /**
+     * Returns: a version of this tree extended with a new node for the new advisee,
+     * Professor a, who received their PhD in the year year, below Professor p.
+     * This tree is unchanged. Returns this tree itself if a is already in the
+     * version it was found in.
+     * Checks: p is in this tree.
+     */
+    public PersistentPhDTree insert(Professor p, Professor a, int year) {
+        Node[] path = path(p);
+        if (path == null) {
+            System.out.println("Not Found Professor " + p.toString());
+            return this;
+        }
+        if (a.equals(top) || advisors.containsKey(a)) return this;
+        Node changed = new Node(a, year, new Node[0]);
+        for (int i = path.length - 1; i >= 0; i--) {
+            Node old = path[i];
+            int j = old.indexOf(changed.prof);
+            Node[] advisees;
+            if (j >= 0) {
+                advisees = old.advisees.clone();
+                advisees[j] = changed;
+            } else {
+                j = -j - 1;
+                advisees = new Node[old.advisees.length + 1];
+                System.arraycopy(old.advisees, 0, advisees, 0, j);
+                advisees[j] = changed;
+                System.arraycopy(old.advisees, j, advisees, j + 1, old.advisees.length - j);
+            }
+            changed = new Node(old.prof, old.phdYear, advisees);
+        }
+        return new PersistentPhDTree(changed, top, advisors.put(a, p));
+    }
+
+    /**
+     * Returns the immediate advisor of p, or throws NotFound if
+     * p is not a descendant of the root node of this tree.
+     */
+    public Professor findAdvisor(Professor p) throws NotFound {
+        if (p.equals(root.prof) || !contains(p)) throw NotFound.shared();
+        return advisors.get(p);
+    }
+
+    /**
+     * Returns: The path between "here" (the root of this tree) to
+     * professor descendant p. Throws NotFound if there is no such path.
+     */
+    public List<Professor> findAcademicLineage(Professor p) throws NotFound {
+        Node[] path = path(p);
+        if (path == null) throw NotFound.shared();
+        List<Professor> lineage = new ArrayList<>(path.length);
+        for (Node n : path) {
+            lineage.add(n.prof);
+        }
+        return lineage;
+    }
+
+    /**
+     * Returns: The professor at the root of the smallest subtree of
+     * this tree that contains prof1 and prof2, if such a subtree
+     * exists. Otherwise, throws NotFound.
+     */
+    public Professor commonAncestor(Professor prof1, Professor prof2) throws NotFound {
+        Node[] a = path(prof1);
+        Node[] b = path(prof2);
+        if (a == null || b == null) throw NotFound.shared();
+        int i = 0;
+        while (i + 1 < a.length && i + 1 < b.length && a[i + 1] == b[i + 1]) {
+            i++;
+        }
+        return a[i].prof;
+    }
+
+    /** Return a (single line) String representation of this tree, as PhDTree.toString does. */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        List<Node> nodes = new ArrayList<>();
+        List<Integer> next = new ArrayList<>();
+        s.append(root.prof);
+        nodes.add(root);
+        next.add(0);
+        while (!nodes.isEmpty()) {
+            int last = nodes.size() - 1;
+            Node n = nodes.get(last);
+            int i = next.get(last);
+            if (i == n.advisees.length) {
+                if (i > 0) s.append(PhDTree.END_ADVISEE_DELIMITER);
+                nodes.remove(last);
+                next.remove(last);
+                continue;
+            }
+            s.append(i == 0 ? PhDTree.START_ADVISEE_DELIMITER : PhDTree.DELIMITER);
+            next.set(last, i + 1);
+            s.append(n.advisees[i].prof);
+            nodes.add(n.advisees[i]);
+            next.add(0);
+        }
+        return s.toString();
+    }
+
+    /**
+     * Return a verbose (multi-line) string representing this tree, as
+     * PhDTree.toStringVerbose does.
+     */
+    public String toStringVerbose() {
+        StringBuilder s = new StringBuilder();
+        List<Node> stack = new ArrayList<>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            Node n = stack.remove(stack.size() - 1);
+            if (n != root) s.append('\n');
+            s.append(n.prof).append(" - ").append(n.phdYear);
+            for (int i = n.advisees.length - 1; i >= 0; i--) {
+                stack.add(n.advisees[i]);
+            }
+        }
+        return s.toString();
+    }
+}
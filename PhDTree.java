@@ -1,11 +1,27 @@
 package a4;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 /** A PhDTree is a tree representing people who have received a PhD degree; each node
  *  represents a person, and the edges represent advisor-advisee relationships, since
@@ -43,31 +59,219 @@ public class PhDTree {
      * node.  It is the empty set if this node is a leaf. The set of
      * PhDTree nodes reachable via advisees forms a tree.
      */
-    private SortedSet<PhDTree> advisees;
+    private NavigableSet<PhDTree> advisees;
+
+    /**
+     * The node of the advisor of this node's professor, i.e. the node whose
+     * advisees contain this node. It is null at the root of the whole tree.
+     */
+    private PhDTree advisor;
+
+    /**
+     * The number of edges between this node and the root of the whole tree.
+     * It is 0 at the root and advisor.depth + 1 everywhere else.
+     */
+    private int depth;
+
+    /**
+     * The number of nodes in this PhDTree, including this one.
+     * Kept up to date by insert.
+     */
+    private int size = 1;
+
+    /**
+     * The length of the longest path from this node down to a leaf.
+     * Kept up to date by insert.
+     */
+    private int height;
+
+    /**
+     * The index of every node in the whole tree this node belongs to.
+     * All nodes of the same tree share one index, which insert keeps up to date.
+     */
+    private final TreeIndex index;
+
+    /**
+     * The position of this node in index, unique within the whole tree.
+     * Nodes are numbered from 0 in the order they were added.
+     */
+    private final int id;
+
+    /** How thoroughly classInv checks the class invariant when assertions are enabled. */
+    public enum CheckLevel {
+        /** No checking. */
+        OFF,
+        /**
+         * Each call checks only the node it is made on, each insert checks the
+         * path it changed, and every sampleInterval-th call checks the whole tree.
+         */
+        SAMPLED,
+        /** Each call checks the whole tree below the node it is made on. */
+        FULL
+    }
+
+    /**
+     * The current check level. Initially given by the system property
+     * "a4.checks" (off, sampled or full), and SAMPLED if that is not set or is
+     * none of these.
+     */
+    private static CheckLevel checkLevel = initialCheckLevel();
+
+    /** Returns the check level named by the system property "a4.checks", or SAMPLED. */
+    private static CheckLevel initialCheckLevel() {
+        String name = System.getProperty("a4.checks", "sampled");
+        try {
+            return CheckLevel.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown check level \"" + name
+                    + "\" in a4.checks; using sampled");
+            return CheckLevel.SAMPLED;
+        }
+    }
+
+    /**
+     * Under SAMPLED, the number of calls of classInv per full check. Initially
+     * given by the system property "a4.checks.interval", and 4096 if that is not set.
+     */
+    private static int sampleInterval = Integer.getInteger("a4.checks.interval", 4096);
+
+    /**
+     * The number of invariant checks performed so far, of any extent. Trees on
+     * different threads check at once, so the counts are atomic.
+     */
+    private static final AtomicLong checkCount = new AtomicLong();
+
+    /** The total time spent in invariant checks so far, in nanoseconds. */
+    private static final LongAdder checkNanos = new LongAdder();
+
+    /** Effect: set how thoroughly the class invariant is checked from now on. */
+    public static void setCheckLevel(CheckLevel level) {
+        assert level != null;
+        checkLevel = level;
+    }
+
+    /**
+     * Effect: under SAMPLED, check the whole tree once every interval calls.
+     * Requires: interval > 0.
+     */
+    public static void setSampleInterval(int interval) {
+        assert interval > 0;
+        sampleInterval = interval;
+    }
+
+    /** The current check level. */
+    public static CheckLevel checkLevel() {
+        return checkLevel;
+    }
+
+    /** The number of invariant checks performed so far, of any extent. */
+    public static long checkCount() {
+        return checkCount.get();
+    }
+
+    /** The total time spent in invariant checks so far, in nanoseconds. */
+    public static long checkNanos() {
+        return checkNanos.sum();
+    }
 
     /** Returns false or throws an assertion error if
      *  the class invariant is not satisfied. Requires:
      *  assertion checking is enabled.
+     *  How much of the tree is examined depends on the check level.
      */
     private boolean classInv() {
+        if (checkLevel == CheckLevel.OFF) return true;
+        long start = System.nanoTime();
+        try {
+            long count = checkCount.incrementAndGet();
+            if (checkLevel == CheckLevel.FULL || count % sampleInterval == 0) {
+                return fullInv();
+            }
+            return localInv();
+        } finally {
+            checkNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /** Returns false or throws an assertion error if the class invariant is not
+     *  satisfied after a change below node. Under SAMPLED this examines only
+     *  node and its ancestors. Requires: assertion checking is enabled.
+     */
+    private boolean pathInv(PhDTree node) {
+        if (checkLevel != CheckLevel.SAMPLED) return classInv();
+        long start = System.nanoTime();
+        try {
+            checkCount.incrementAndGet();
+            for (PhDTree n = node; n != null; n = n.advisor) {
+                if (!n.localInv()) return false;
+            }
+            return true;
+        } finally {
+            checkNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /** Returns false or throws an assertion error if the whole class invariant
+     *  does not hold for this PhDTree, including the cached sizes and heights.
+     */
+    private boolean fullInv() {
         Set<Professor> seenProfs = new HashSet<>();
         Set<PhDTree> seenNodes = new HashSet<>();
-        return classInvTraverse(seenProfs, seenNodes);
+        return classInvTraverse(seenProfs, seenNodes) && aggregateInv();
+    }
+
+    /** Returns false or throws an assertion error if the class invariant does
+     *  not hold at this node: it is indexed, and its depth and cached size and
+     *  height fit those of its advisor. Takes constant time; the advisees and the
+     *  exact sizes and heights are checked by fullInv.
+     */
+    private boolean localInv() {
+        assert index.node(prof) == this : "prof " + prof + " is not indexed";
+        if (advisor == null) {
+            assert depth == 0 : "prof " + prof + " is a root at depth " + depth;
+        } else {
+            assert depth == advisor.depth + 1 : "prof " + prof + " has the wrong depth";
+            assert advisor.size > size : "prof " + prof + " has a larger subtree than their advisor";
+            assert advisor.height > height : "prof " + prof + " has a higher subtree than their advisor";
+        }
+        return true;
     }
 
     /**
-     * Helper method for classInv. Traverses the tree from this node,
+     * Helper method for fullInv. Traverses the tree from this node,
      * adding all Professors and nodes seen to the respective seen sets. Things added must
      * not already be in the set; it would imply the data structure is not a tree. Returns false
-     * or throws an assertion error if these conditions are not met.
+     * or throws an assertion error if these conditions are not met, if localInv fails at
+     * some node, or if some advisee does not link back to its advisor.
      */
     private boolean classInvTraverse(Set<Professor> seenProfs, Set<PhDTree> seenNodes) {
-        assert !seenProfs.contains(prof) : "prof " + prof + " is not unique";
-        assert !seenNodes.contains(this) : "node " + this + " is not unique";
-        seenProfs.add(prof);
-        seenNodes.add(this);
-        for (PhDTree child: advisees) {
-            if (!child.classInvTraverse(seenProfs, seenNodes)) return false;
+        for (PhDTree n : preOrder()) {
+            assert !seenProfs.contains(n.prof) : "prof " + n.prof + " is not unique";
+            assert !seenNodes.contains(n) : "node " + n.prof + " is not unique";
+            if (!n.localInv()) return false;
+            for (PhDTree child: n.advisees) {
+                assert child.advisor == n : "prof " + child.prof + " has the wrong advisor";
+            }
+            seenProfs.add(n.prof);
+            seenNodes.add(n);
+        }
+        return true;
+    }
+
+    /** Returns false or throws an assertion error if the cached size or height
+     *  of some node in this PhDTree disagrees with a recount of its subtree.
+     *  Requires: assertion checking is enabled.
+     */
+    boolean aggregateInv() {
+        for (PhDTree n : postOrder()) {
+            int s = 1;
+            int h = 0;
+            for (PhDTree child: n.advisees) {
+                s += child.size;
+                h = Math.max(h, child.height + 1);
+            }
+            assert n.size == s : "prof " + n.prof + " has cached size " + n.size + " but " + s + " nodes";
+            assert n.height == h : "prof " + n.prof + " has cached height " + n.height + " but " + h + " levels";
         }
         return true;
     }
@@ -76,11 +280,22 @@ public class PhDTree {
      * Creates: a new PhDTree with root Professor p and no children.
      */
     public PhDTree(Professor p, int year) throws IllegalArgumentException {
+        this(p, year, new TreeIndex());
+        assert classInv();
+    }
+
+    /**
+     * Creates: a new PhDTree node with root Professor p and no children, and
+     * records it in index under the canonical instance of p. The caller must
+     * link it below its advisor. Requires: p is not already in index.
+     */
+    private PhDTree(Professor p, int year, TreeIndex index) {
         assert p != null;
-        prof = p;
+        prof = p.intern();
         phdYear = year;
         advisees = new TreeSet<>((x, y) -> x.prof.compareTo(y.prof));
-        assert classInv();
+        this.index = index;
+        id = index.add(this);
     }
 
     /** The Professor at the root of this PhDTree. */
@@ -88,101 +303,123 @@ public class PhDTree {
         return prof;
     }
 
+    /** The year in which the Professor at the root of this PhDTree was awarded their PhD. */
+    int phdYear() {
+        return phdYear;
+    }
+
+    /** The advisees of this node, in order, as an unmodifiable set. */
+    SortedSet<PhDTree> advisees() {
+        return Collections.unmodifiableSortedSet(advisees);
+    }
+
+    /** The first advisee of this node, or null if it is a leaf. */
+    private PhDTree firstAdvisee() {
+        return advisees.isEmpty() ? null : advisees.first();
+    }
+
+    /**
+     * The advisee of this node's advisor that comes after this node, or null if this
+     * is the last one or the root of the whole tree.
+     */
+    private PhDTree nextSibling() {
+        return advisor == null ? null : advisor.advisees.higher(this);
+    }
+
+    /** The position of this node in its tree's index. */
+    int id() {
+        return id;
+    }
+
+    /** The node of this node's advisor, or null at the root of the whole tree. */
+    PhDTree advisor() {
+        return advisor;
+    }
+
+    /** The number of edges between this node and the root of the whole tree. */
+    int depth() {
+        return depth;
+    }
+
     /** The number of direct advisees of the professor at the root of the PhDTree. */
     public int numAdvisees() {
         // TODO 1
         assert classInv();
+        Metrics.count(Metrics.Operation.NUM_ADVISEES);
         return advisees.size();
     }
 
     /**
      * Returns the number of nodes in this PhDTree.
      * Note: If this is a leaf, the size is 1 (just the root)
+     * Takes constant time, since insert keeps the count up to date.
      */
     public int size() {
         // TODO 2
-        // This method must be recursive.
         // State whether this is a searching or a counting method: counting method
         assert classInv();
-        if(advisees.size() == 0){
-            assert classInv();
-            return 1;
-        }
-        int sum = 1;
-        for (PhDTree ptree: advisees){
-            sum = sum + ptree.size();
-        }
-        assert classInv();
-        return sum;
+        Metrics.count(Metrics.Operation.SIZE);
+        return size;
     }
 
     /**
      * The maximum depth of this PhDTree,
      * i.e. the longest path from the root to a leaf.
      * Example: If this PhDTree has only one node, returns 0.
+     * Takes constant time, since insert keeps the depth up to date.
      */
     public int maxDepth() {
         // TODO 3
         assert classInv();
-        if(advisees.size() == 0){
-            assert classInv();
-            return 0;
-        }
-        int length = 1;
-        for(PhDTree ptree: advisees){
-            int newLength = 1;
-            newLength = newLength + ptree.maxDepth();
-            if (newLength >= length){
-                length = newLength;
-            }
-        }
-        assert classInv();
-        return length;
-
+        Metrics.count(Metrics.Operation.MAX_DEPTH);
+        return height;
     }
 
     /**
      * Returns the subtree with p at the root. Throws NotFound
      * if p is not in the tree.
+     * Uses the tree's index, so it takes expected constant time on the root of
+     * the whole tree and time proportional to the depth of p on a subtree.
      */
     public PhDTree findTree(Professor p) throws NotFound {
         // TODO 4
-        // You will need to use recursion and to catch the NotFound exception.
+        return lookup(p).orElseThrow(NotFound::shared);
+    }
 
+    /**
+     * Returns the subtree with p at the root, or an empty Optional
+     * if p is not in the tree. Takes the same time as findTree.
+     */
+    public Optional<PhDTree> lookup(Professor p) {
         assert classInv();
-        if (prof.equals(p)){
-            return this;
-        }
-        int i = 0;
-        for (PhDTree ptree : advisees) {
-            try {
-                PhDTree result = ptree.findTree(p);
-                assert classInv();
-                return result;
-            }catch(NotFound exc){
-                if (i == numAdvisees() - 1){
-                    assert classInv();
-                    throw exc;
-                }
-            }
-            i ++;
-        }
-        assert classInv();
-        throw new NotFound();
+        Metrics.count(Metrics.Operation.FIND_TREE);
+        return Optional.ofNullable(nodeOf(p));
     }
 
     /** Returns true if this PhDTree contains a node with Professor p. */
     public boolean contains(Professor p) {
         assert classInv();
-        try {
-            findTree(p);
-            assert classInv();
-            return true;
-        } catch (NotFound exc) {
-            assert classInv();
-            return false;
+        Metrics.count(Metrics.Operation.CONTAINS);
+        return nodeOf(p) != null;
+    }
+
+    /**
+     * Returns the node of this PhDTree holding p, or null if p is not in this PhDTree.
+     * Takes expected constant time at the root of the whole tree, and time
+     * proportional to the depth of p below this node otherwise.
+     */
+    private PhDTree nodeOf(Professor p) {
+        PhDTree node = index.node(p);
+        if (node == null) return null;
+        Metrics.visited(advisor == null ? 1 : 1 + Math.max(0, node.depth - depth));
+        if (advisor == null) return node;
+        PhDTree n = node;
+        while (n.depth > depth) {
+            n = n.advisor;
         }
+        return n == this ? node : null;
     }
+
     /**
      * Effect: Extend the tree rooted at Professor p with a new node for
      * the new advisee, Professor a, who received their PhD in the year
@@ -197,17 +434,61 @@ public class PhDTree {
         // --don't duplicate work.
 
         assert classInv();
+        Metrics.count(Metrics.Operation.INSERT);
         try{
             PhDTree myP = findTree(p);
-            try{
-                findTree(a);
-            }catch(NotFound exc){
-                PhDTree newStudent = new PhDTree(a, year);
-                myP.advisees.add(newStudent);
+            if (!index.contains(a)) {
+                Metrics.visited(myP.depth + 1);
+                PhDTree newStudent = myP.attach(a, year);
+                int h = 0;
+                for (PhDTree n = myP; n != null; n = n.advisor) {
+                    n.size++;
+                    h++;
+                    if (n.height < h) n.height = h;
+                }
+                ResultCache cache = index.cache();
+                if (cache != null) cache.inserted(myP);
+                assert pathInv(newStudent);
             }
         }catch (NotFound exc){
             System.out.println("Not Found Professor " + p.toString());
         }
+    }
+
+    /**
+     * Returns: a new node for Professor a, who received their PhD in the year
+     * year, linked as an advisee of this node. Does not check whether a is already
+     * in the tree and does not update cached sizes and heights, so a bulk loader
+     * that attaches many nodes must call refreshAggregates once it is done.
+     * Requires: a is not in the tree.
+     */
+    PhDTree attach(Professor a, int year) {
+        PhDTree child = new PhDTree(a, year, index);
+        child.advisor = this;
+        child.depth = depth + 1;
+        advisees.add(child);
+        return child;
+    }
+
+    /**
+     * Effect: recompute the cached size and height of every node in the whole
+     * tree this node belongs to. Takes time linear in the size of the tree.
+     */
+    void refreshAggregates() {
+        // Every node is added to the index after its advisor, so visiting ids in
+        // decreasing order visits each node after all of its advisees.
+        for (int i = 0; i < index.size(); i++) {
+            PhDTree n = index.node(i);
+            n.size = 1;
+            n.height = 0;
+        }
+        for (int i = index.size() - 1; i >= 0; i--) {
+            PhDTree n = index.node(i);
+            PhDTree a = n.advisor;
+            if (a == null) continue;
+            a.size += n.size;
+            if (a.height < n.height + 1) a.height = n.height + 1;
+        }
         assert classInv();
     }
 
@@ -216,30 +497,22 @@ public class PhDTree {
      * p is not a descendant of the root node of this tree.
      */
     public Professor findAdvisor(Professor p) throws NotFound {
-        assert classInv();
         // TODO 6
-        for (PhDTree ptree : advisees){
-            if (ptree.prof.equals(p)){
-                assert classInv();
-                return prof;
-            }
-        }
-        int i = 0;
-        for (PhDTree ptree : advisees){
-            try {
-                Professor result = ptree.findAdvisor(p);
-                assert classInv();
-                return result;
-            }catch(NotFound exc){
-                if (i == numAdvisees() - 1){
-                    assert classInv();
-                    throw exc;
-                }
-            }
-            i++;
-        }
+        return lookupAdvisor(p).orElseThrow(NotFound::shared);
+    }
+
+    /**
+     * Returns the immediate advisor of p, or an empty Optional if
+     * p is not a descendant of the root node of this tree.
+     */
+    public Optional<Professor> lookupAdvisor(Professor p) {
         assert classInv();
-        throw new NotFound();
+        Metrics.count(Metrics.Operation.FIND_ADVISOR);
+        PhDTree node = nodeOf(p);
+        if (node == null || node == this) {
+            return Optional.empty();
+        }
+        return Optional.of(node.advisor.prof);
     }
 
     /**
@@ -248,32 +521,38 @@ public class PhDTree {
      */
     public List<Professor> findAcademicLineage(Professor p) throws NotFound {
         // TODO 7
+        return lookupAcademicLineage(p).orElseThrow(NotFound::shared);
+    }
+
+    /**
+     * Returns: The path between "here" (the root of this PhDTree) to
+     * professor descendant p, or an empty Optional if there is no such path.
+     * At the root of the whole tree, while the result cache is on, the path
+     * may be copied from the cache; the caller may modify it either way.
+     */
+    public Optional<List<Professor>> lookupAcademicLineage(Professor p) {
         assert classInv();
-        LinkedList<Professor> Lineage = new LinkedList<>();
-        if (!contains(p)) {
-            assert classInv();
-            throw new NotFound();
-        }
-        Lineage.add(prof);
-        if (prof.equals(p)){
-            return Lineage;
-        }
-        int i = 0;
-        for (PhDTree ptree: advisees){
-            try {
-                Lineage.addAll(ptree.findAcademicLineage(p));
-                assert classInv();
-                return Lineage;
-            }catch(NotFound exc){
-                if (i == numAdvisees() - 1){
-                    assert classInv();
-                    throw exc;
-                }
-            }
-            i++;
+        Metrics.count(Metrics.Operation.FIND_ACADEMIC_LINEAGE);
+        ResultCache cache = advisor == null ? index.cache() : null;
+        if (cache != null) {
+            List<Professor> cached = cache.lineage(p);
+            if (cached != null) return Optional.of(new ArrayList<>(cached));
         }
-        assert classInv();
-        throw new NotFound();
+        PhDTree node = nodeOf(p);
+        if (node == null) {
+            return Optional.empty();
+        }
+        Metrics.visited(node.depth - depth + 1);
+        ArrayList<Professor> lineage = new ArrayList<>(node.depth - depth + 1);
+        for (PhDTree n = node; n != this; n = n.advisor) {
+            lineage.add(n.prof);
+        }
+        lineage.add(prof);
+        Collections.reverse(lineage);
+        if (cache != null) {
+            cache.putLineage(p, Collections.unmodifiableList(new ArrayList<>(lineage)));
+        }
+        return Optional.of(lineage);
     }
 
     /**
@@ -283,34 +562,163 @@ public class PhDTree {
      */
     public Professor commonAncestor(Professor prof1, Professor prof2) throws NotFound {
         // TODO 8
+        return lookupCommonAncestor(prof1, prof2).orElseThrow(NotFound::shared);
+    }
+
+    /**
+     * Returns: The professor at the root of the smallest subtree of
+     * this PhDTree that contains prof1 and prof2, if such a subtree
+     * exists. Otherwise, returns an empty Optional.
+     */
+    public Optional<Professor> lookupCommonAncestor(Professor prof1, Professor prof2) {
         assert classInv();
-        try{
-            List<Professor> r1 = findAcademicLineage(prof1);
-            List<Professor> r2 = findAcademicLineage(prof2);
-            int i = 0;
-            int max = 0;
-            Professor result = r1.get(0);
-            List<Professor> shorter = r1;
-            List<Professor> longer = r2;
-            if(r2.size() < r1.size()){
-                shorter = r2;
-                longer = r1;
-            }
-            for (Professor prof: shorter){
-                if(prof.equals(longer.get(i))){
-                    if (i >= max){
-                        result = prof;
-                        max = i;
-                    }
-                }
-                i++;
+        Metrics.count(Metrics.Operation.COMMON_ANCESTOR);
+        ResultCache cache = advisor == null ? index.cache() : null;
+        if (cache != null) {
+            Professor cached = cache.ancestor(prof1, prof2);
+            if (cached != null) return Optional.of(cached);
+        }
+        PhDTree n1 = nodeOf(prof1);
+        PhDTree n2 = nodeOf(prof2);
+        if (n1 == null || n2 == null) {
+            return Optional.empty();
+        }
+        AncestorIndex ancestors = index.ancestors(false);
+        if (ancestors != null) {
+            Professor result = ancestors.commonAncestor(n1, n2).prof;
+            if (cache != null) cache.putAncestor(prof1, prof2, result);
+            return Optional.of(result);
+        }
+        int start1 = n1.depth;
+        int start2 = n2.depth;
+        while (n1.depth > n2.depth) n1 = n1.advisor;
+        while (n2.depth > n1.depth) n2 = n2.advisor;
+        while (n1 != n2) {
+            n1 = n1.advisor;
+            n2 = n2.advisor;
+        }
+        Metrics.visited(start1 + start2 - 2 * n1.depth);
+        if (cache != null) cache.putAncestor(prof1, prof2, n1.prof);
+        return Optional.of(n1.prof);
+    }
+
+    /**
+     * Returns: an array whose element i is the common ancestor, within this PhDTree,
+     * of the two professors in pairs[i], or null if either of them is not in this
+     * PhDTree. Each element of pairs must have length 2.
+     * Always answers through the tree's ancestor index, building it if necessary,
+     * so each pair takes time logarithmic in the depth of the tree.
+     */
+    public Professor[] commonAncestors(Professor[][] pairs) {
+        assert classInv();
+        AncestorIndex ancestors = index.ancestors(true);
+        Professor[] result = new Professor[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            PhDTree n1 = nodeOf(pairs[i][0]);
+            PhDTree n2 = nodeOf(pairs[i][1]);
+            if (n1 != null && n2 != null) {
+                result[i] = ancestors.commonAncestor(n1, n2).prof;
             }
-            assert classInv();
-            return result;
-        }catch(NotFound exc){
-            assert classInv();
-            throw exc;
         }
+        assert classInv();
+        return result;
+    }
+
+    /**
+     * Effect: choose whether commonAncestor answers through an index of jump
+     * tables over the whole tree, which takes time logarithmic in the depth of
+     * the tree per query instead of linear. The index is built on the first
+     * query and rebuilt on the first query after an insert, so enable it once
+     * the tree is mostly complete. It applies to every node of the tree.
+     */
+    public void useAncestorIndex(boolean enabled) {
+        index.useAncestors(enabled);
+    }
+
+    /**
+     * Effect: choose whether the results of findAcademicLineage and commonAncestor
+     * at the root of the whole tree, and the toString of subtrees of at most
+     * ResultCache.FIND_MAX_NODES nodes, are kept in a bounded cache of the least
+     * recently used results. An insert evicts only the toStrings of the subtrees
+     * it changes. Turning the cache on starts with an empty one. It applies to
+     * every node of the tree.
+     */
+    public void useResultCache(boolean enabled) {
+        index.useCache(enabled);
+    }
+
+    /** Returns the result cache of this tree, or null if results are not cached. */
+    ResultCache resultCache() {
+        return index.cache();
+    }
+
+    /**
+     * Returns a one-line report of the entries of the result cache and of its hits
+     * and misses for each kind of query, or says that results are not cached.
+     */
+    public String resultCacheReport() {
+        ResultCache cache = index.cache();
+        return cache == null ? "Result cache: off" : cache.report();
+    }
+
+    /**
+     * Returns the number of professors in this PhDTree who received their PhD in a
+     * year from from to to, inclusive, which is 0 if from > to. Goes through the tree's
+     * year index, which is built on the first such query and rebuilt on the first one
+     * after an insert, in time O(n log n); after that each query takes time logarithmic
+     * in the number of distinct years.
+     */
+    public int countInYears(int from, int to) {
+        assert classInv();
+        return index.years().count(this, from, to);
+    }
+
+    /**
+     * Returns the nodes of this PhDTree whose professor received their PhD in a year
+     * from from to to, inclusive, ordered by year and then as in preOrder(), or none
+     * if from > to. Goes through the tree's year index, as countInYears does; after
+     * that each query takes time O(log n) for each year in the range, plus time linear
+     * in the result.
+     */
+    public List<PhDTree> inYears(int from, int to) {
+        assert classInv();
+        return index.years().list(this, from, to);
+    }
+
+    /**
+     * Returns the number of professors in this PhDTree who received their PhD in each
+     * year, for the years in which any did. Goes through the tree's year index, as
+     * countInYears does; after that it takes time O(log n) for each distinct year.
+     */
+    public SortedMap<Integer, Integer> cohorts() {
+        assert classInv();
+        return index.years().cohorts(this);
+    }
+
+    /**
+     * Returns up to limit professors in this PhDTree whose first or last name starts
+     * with prefix, ignoring case, in alphabetical order of the name that matched. A
+     * prefix with a space also matches "first last" and "last first". Goes through the
+     * tree's name index, which is built on the first search and rebuilt on the first
+     * one after an insert, in time O(n log n); after that a search takes time
+     * O(log n) plus time linear in the names it looks at.
+     */
+    public List<Professor> searchPrefix(String prefix, int limit) {
+        assert classInv();
+        return index.names().prefix(prefix, limit, p -> advisor == null || nodeOf(p) != null);
+    }
+
+    /**
+     * Returns up to limit professors in this PhDTree whose name "first last" is
+     * within a small edit distance of name, ignoring case: 2 for most names, less for
+     * very short ones. They are ranked closest first, then by how close the length of
+     * their name is, then alphabetically. Goes through the tree's name index, as
+     * searchPrefix does; after that a search compares name only with the professors
+     * whose names share its rarest trigrams.
+     */
+    public List<Professor> searchFuzzy(String name, int limit) {
+        assert classInv();
+        return index.names().fuzzy(name, limit, p -> advisor == null || nodeOf(p) != null);
     }
 
     /**
@@ -346,21 +754,62 @@ public class PhDTree {
      */
     @Override
     public String toString() {
-        if (advisees.isEmpty())
-            return prof.toString();
         StringBuilder s = new StringBuilder();
-        s.append(prof.toString())
-                .append(START_ADVISEE_DELIMITER);
-        boolean first = true;
-        for (PhDTree dt : advisees) {
-            if (!first) s.append(DELIMITER);
-            first = false;
-            s.append(dt.toString());
-        }
-        s.append(END_ADVISEE_DELIMITER);
+        try {
+            writeTo(s);
+        } catch (IOException e) {
+            throw new AssertionError(e); // a StringBuilder does not throw
+        }
         return s.toString();
     }
 
+    /**
+     * Effect: append toString() to out in a single pass, without building the
+     * String. Throws an IOException if out does.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        Metrics.count(Metrics.Operation.TO_STRING);
+        ResultCache cache = index.cache();
+        if (cache != null && size <= ResultCache.FIND_MAX_NODES) {
+            String s = cache.find(prof);
+            if (s == null) {
+                StringBuilder b = new StringBuilder();
+                render(b);
+                s = b.toString();
+                cache.putFind(prof, s);
+            }
+            out.append(s);
+            return;
+        }
+        render(out);
+    }
+
+    /**
+     * Effect: append toString() to out, built from the tree rather than the cache.
+     * Throws an IOException if out does.
+     */
+    private void render(Appendable out) throws IOException {
+        Metrics.visited(size);
+        PhDTree n = this;
+        while (true) {
+            out.append(n.prof.toString());
+            PhDTree child = n.firstAdvisee();
+            if (child != null) {
+                out.append(START_ADVISEE_DELIMITER);
+                n = child;
+                continue;
+            }
+            PhDTree sibling = null;
+            while (n != this && (sibling = n.nextSibling()) == null) {
+                n = n.advisor;
+                out.append(END_ADVISEE_DELIMITER);
+            }
+            if (n == this) return;
+            out.append(DELIMITER);
+            n = sibling;
+        }
+    }
+
     /**
      * Return a verbose (multi-line) string representing this PhDTree with
      * the professors [first name last name - year].
@@ -369,21 +818,304 @@ public class PhDTree {
      * Each line is terminated by a newline character ('\n').
      */
     public String toStringVerbose() {
-        assert classInv();
         StringBuilder s = new StringBuilder();
         // TODO 9
-        // Use a StringBuilder to implement this method (Hint: look at toString)
-        if (numAdvisees() == 0){
-            assert classInv();
-            return s.append(prof).append(" - ").append(phdYear).toString();
+        try {
+            writeVerboseTo(s);
+        } catch (IOException e) {
+            throw new AssertionError(e); // a StringBuilder does not throw
         }
-        s.append(prof);
-        s.append(" - ").append(phdYear);
-        for(PhDTree ptree: advisees){
-            s.append("\n");
-            s.append(ptree.toStringVerbose());
+        return s.toString();
+    }
+
+    /**
+     * Effect: append toStringVerbose() to out in a single pass, without building
+     * the String. Throws an IOException if out does.
+     */
+    public void writeVerboseTo(Appendable out) throws IOException {
+        assert classInv();
+        Metrics.count(Metrics.Operation.TO_STRING_VERBOSE);
+        Metrics.visited(size);
+        for (PhDTree n : preOrder()) {
+            if (n != this) out.append('\n');
+            out.append(n.prof.toString()).append(" - ").append(Integer.toString(n.phdYear));
         }
         assert classInv();
-        return s.toString();
     }
-}
\ No newline at end of file
+
+    /**
+     * The size below which a subtree is processed sequentially by the parallel
+     * methods. Initially given by the system property "a4.parallel.threshold",
+     * and 8192 if that is not set.
+     */
+    private static int parallelThreshold = Integer.getInteger("a4.parallel.threshold", 8192);
+
+    /**
+     * Effect: process subtrees with fewer than threshold nodes sequentially in the
+     * parallel methods. Requires: threshold > 0.
+     */
+    public static void setParallelThreshold(int threshold) {
+        assert threshold > 0;
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * Returns the number of nodes in this PhDTree, counted again on the common
+     * ForkJoinPool rather than read from the cache that size() returns.
+     * The tree must not change meanwhile.
+     */
+    public int parallelSize() {
+        return parallelSize(ForkJoinPool.commonPool());
+    }
+
+    /** Returns parallelSize(), counted on pool. */
+    public int parallelSize(ForkJoinPool pool) {
+        return pool.invoke(new AggregateTask(this, false));
+    }
+
+    /**
+     * Returns the maximum depth of this PhDTree, measured again on the common
+     * ForkJoinPool rather than read from the cache that maxDepth() returns.
+     * The tree must not change meanwhile.
+     */
+    public int parallelMaxDepth() {
+        return parallelMaxDepth(ForkJoinPool.commonPool());
+    }
+
+    /** Returns parallelMaxDepth(), measured on pool. */
+    public int parallelMaxDepth(ForkJoinPool pool) {
+        return pool.invoke(new AggregateTask(this, true)) - depth;
+    }
+
+    /**
+     * Returns some node of this PhDTree that satisfies test, or an empty Optional
+     * if there is none, searching on the common ForkJoinPool. Which node is returned
+     * when several satisfy test is unspecified. The tree must not change meanwhile.
+     */
+    public Optional<PhDTree> parallelSearch(Predicate<PhDTree> test) {
+        return parallelSearch(test, ForkJoinPool.commonPool());
+    }
+
+    /** Returns parallelSearch(test), searching on pool. */
+    public Optional<PhDTree> parallelSearch(Predicate<PhDTree> test, ForkJoinPool pool) {
+        AtomicReference<PhDTree> found = new AtomicReference<>();
+        pool.invoke(new SearchTask(this, test, found));
+        return Optional.ofNullable(found.get());
+    }
+
+    /**
+     * A task that computes, over the subtree rooted at one node, either the number
+     * of nodes or the largest depth of a node. Advisees with at least
+     * parallelThreshold nodes are forked as tasks of their own; the rest of the
+     * subtree is walked sequentially. While there is only one such advisee, the
+     * task follows it itself instead of forking, so a long chain uses no stack.
+     */
+    private static final class AggregateTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+        private final transient PhDTree root;
+        private final boolean maxDepth;
+
+        /** Creates: a task for the subtree at root; the largest depth iff maxDepth. */
+        AggregateTask(PhDTree root, boolean maxDepth) {
+            this.root = root;
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        protected Integer compute() {
+            int result = 0;
+            List<AggregateTask> forked = new ArrayList<>();
+            PhDTree n = root;
+            while (n != null) {
+                result = combine(result, maxDepth ? n.depth : 1);
+                PhDTree heavy = null;
+                for (PhDTree child : n.advisees) {
+                    if (child.size < parallelThreshold) {
+                        result = combine(result, sequential(child));
+                    } else {
+                        if (heavy != null) {
+                            AggregateTask task = new AggregateTask(heavy, maxDepth);
+                            task.fork();
+                            forked.add(task);
+                        }
+                        heavy = child;
+                    }
+                }
+                n = heavy;
+            }
+            for (AggregateTask task : forked) {
+                result = combine(result, task.join());
+            }
+            return result;
+        }
+
+        /** Returns the result for the subtree at n, computed on this thread. */
+        private int sequential(PhDTree n) {
+            int result = 0;
+            for (PhDTree m : n.preOrder()) {
+                result = combine(result, maxDepth ? m.depth : 1);
+            }
+            return result;
+        }
+
+        /** Returns the result for the union of two parts whose results are a and b. */
+        private int combine(int a, int b) {
+            return maxDepth ? Math.max(a, b) : a + b;
+        }
+    }
+
+    /**
+     * A task that searches the subtree rooted at one node for a node satisfying a
+     * test, splitting the work as AggregateTask does and stopping early once any
+     * task has found one.
+     */
+    private static final class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient PhDTree root;
+        private final transient Predicate<PhDTree> test;
+        private final transient AtomicReference<PhDTree> found;
+
+        /** Creates: a task that searches the subtree at root and records a match in found. */
+        SearchTask(PhDTree root, Predicate<PhDTree> test, AtomicReference<PhDTree> found) {
+            this.root = root;
+            this.test = test;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            List<SearchTask> forked = new ArrayList<>();
+            PhDTree n = root;
+            while (n != null && found.get() == null) {
+                if (test.test(n)) {
+                    found.compareAndSet(null, n);
+                    break;
+                }
+                PhDTree heavy = null;
+                for (PhDTree child : n.advisees) {
+                    if (child.size < parallelThreshold) {
+                        sequential(child);
+                    } else {
+                        if (heavy != null) {
+                            SearchTask task = new SearchTask(heavy, test, found);
+                            task.fork();
+                            forked.add(task);
+                        }
+                        heavy = child;
+                    }
+                }
+                n = heavy;
+            }
+            for (SearchTask task : forked) {
+                task.join();
+            }
+        }
+
+        /** Effect: search the subtree at n on this thread. */
+        private void sequential(PhDTree n) {
+            for (PhDTree m : n.preOrder()) {
+                if (found.get() != null) return;
+                if (test.test(m)) {
+                    found.compareAndSet(null, m);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the nodes of this PhDTree in pre-order: each node comes before its
+     * advisees, which come in order. Iterating allocates nothing per node and takes
+     * no stack space, however deep the tree is. The tree must not change meanwhile.
+     */
+    public Iterable<PhDTree> preOrder() {
+        return () -> new Iterator<PhDTree>() {
+            private PhDTree next = PhDTree.this;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public PhDTree next() {
+                PhDTree n = next;
+                if (n == null) throw new NoSuchElementException();
+                PhDTree succ = n.firstAdvisee();
+                while (succ == null && n != PhDTree.this) {
+                    succ = n.nextSibling();
+                    n = n.advisor;
+                }
+                PhDTree result = next;
+                next = succ;
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Returns the nodes of this PhDTree in post-order: each node comes after its
+     * advisees, which come in order. Iterating allocates nothing per node and takes
+     * no stack space, however deep the tree is. The tree must not change meanwhile.
+     */
+    public Iterable<PhDTree> postOrder() {
+        return () -> new Iterator<PhDTree>() {
+            private PhDTree next = PhDTree.this.leftmostLeaf();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public PhDTree next() {
+                PhDTree n = next;
+                if (n == null) throw new NoSuchElementException();
+                if (n == PhDTree.this) {
+                    next = null;
+                } else {
+                    PhDTree sibling = n.nextSibling();
+                    next = sibling != null ? sibling.leftmostLeaf() : n.advisor;
+                }
+                return n;
+            }
+        };
+    }
+
+    /** Returns the first leaf of this PhDTree in pre-order. */
+    private PhDTree leftmostLeaf() {
+        PhDTree n = this;
+        for (PhDTree c = n.firstAdvisee(); c != null; c = c.firstAdvisee()) {
+            n = c;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the nodes of this PhDTree in level order: by increasing depth, and in
+     * pre-order within a level. Iterating keeps the nodes of up to two levels in one
+     * queue, adding each node's advisees to it one at a time rather than through a
+     * copied array, so it allocates only the queue and an iterator over each node's
+     * advisees. The tree must not change meanwhile.
+     */
+    public Iterable<PhDTree> levelOrder() {
+        return () -> new Iterator<PhDTree>() {
+            private final ArrayDeque<PhDTree> queue = new ArrayDeque<>(List.of(PhDTree.this));
+
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public PhDTree next() {
+                PhDTree n = queue.poll();
+                if (n == null) throw new NoSuchElementException();
+                for (PhDTree child : n.advisees) {
+                    queue.add(child);
+                }
+                return n;
+            }
+        };
+    }
+}
@@ -1,15 +1,43 @@
 package a4;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A professor, with attributes such as their name and the year they received their PhD.
+ * Professors are compared by name. Professor.of returns a canonical instance for each
+ * name, so that comparing canonical instances is a reference comparison. Every node of
+ * a PhDTree holds a canonical instance, and the loaders produce canonical instances
+ * from the start, so the index of a tree is keyed on them and equality checks between
+ * professors already in a tree compare ids instead of names. The order of professors
+ * is by name, as it must be for the order of advisees, so compareTo still compares
+ * the names of distinct professors.
  */
 public final class Professor implements Comparable<Professor> {
+    /** The canonical instance of each name interned so far. */
+    private static final ConcurrentHashMap<Professor, Professor> POOL = new ConcurrentHashMap<>();
+
+    /** The id of the next canonical instance. */
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
     /** First name of this professor */
     private final String firstName;
 
     /** Last name of this professor */
     private final String lastName;
 
+    /** The hash code of this professor, the hash code of toString(). */
+    private final int hash;
+
+    /**
+     * The id of this professor if it is a canonical instance, unique among them,
+     * or -1 if it is not.
+     */
+    private final int id;
+
+    /** The value of toString(), or null if it has not been computed yet. */
+    private String display;
+
     /**
      * Constructor: A new Professor
      *
@@ -19,6 +47,50 @@ public final class Professor implements Comparable<Professor> {
     public Professor(String first, String last) {
         firstName = first;
         lastName = last;
+        id = -1;
+        int h = 31 * first.hashCode() + ' ';
+        for (int i = 0; i < last.length(); i++) {
+            h = 31 * h + last.charAt(i);
+        }
+        hash = h;
+    }
+
+    /** Constructor: A new canonical Professor with the names and hash code of key. */
+    private Professor(Professor key) {
+        firstName = key.firstName;
+        lastName = key.lastName;
+        hash = key.hash;
+        id = NEXT_ID.getAndIncrement();
+    }
+
+    /**
+     * Returns the canonical Professor with the given names, creating it if this is the
+     * first request for them. Canonical instances are kept for the life of the program.
+     *
+     * @param first Their first name
+     * @param last Their last name
+     */
+    public static Professor of(String first, String last) {
+        return new Professor(first, last).intern();
+    }
+
+    /** Returns the canonical Professor with the same names as this one. */
+    public Professor intern() {
+        if (id >= 0) return this;
+        Professor p = POOL.get(this);
+        if (p != null) return p;
+        // keyed on the canonical instance itself, so the pool holds one object per name
+        Professor c = new Professor(this);
+        p = POOL.putIfAbsent(c, c);
+        return p != null ? p : c;
+    }
+
+    /**
+     * The id of this professor if it is a canonical instance, unique among them,
+     * or -1 if it is not.
+     */
+    public int id() {
+        return id;
     }
 
     /**
@@ -40,22 +112,31 @@ public final class Professor implements Comparable<Professor> {
      * their first and last names.
      */
     public @Override String toString() {
-        return firstName + " " + lastName;
+        String s = display;
+        if (s == null) {
+            s = firstName + " " + lastName;
+            display = s;
+        }
+        return s;
     }
 
     @Override
     public boolean equals(Object ob) {
+        if (this == ob) return true;
         if (ob == null || !this.getClass().equals(ob.getClass()))
             return false;
 
         Professor other = (Professor) ob;
-        return this.firstName.equals(other.firstName()) &&
+        // distinct canonical instances have distinct names
+        if (id >= 0 && other.id >= 0) return false;
+        return hash == other.hash &&
+                this.firstName.equals(other.firstName()) &&
                 this.lastName.equals(other.lastName());
     }
 
     @Override
     public int hashCode() {
-        return toString().hashCode();
+        return hash;
     }
 
     /** Compare two professors. They are ordered alphabetically
@@ -63,8 +144,9 @@ public final class Professor implements Comparable<Professor> {
      */
     @Override
     public int compareTo(Professor p) {
+        if (this == p) return 0;
         int c = lastName.compareTo(p.lastName);
         if (c != 0) return c;
         return firstName.compareTo(p.firstName);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+package a4;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A server that answers Main's commands about Main.professorTree over TCP, so the
+ * genealogy is loaded once for many query sessions.
+ *
+ * <p>A client sends commands one per line, exactly as typed at Main's prompt, and may
+ * send many before reading any answers. The server answers them in order; the answer
+ * to each command is the output Main would print for it, followed by a line holding
+ * only ".". The command "exit" closes the connection. "print" with a file name is
+ * refused, so that clients cannot write files on the server.
+ *
+ * <p>Each connection is served by its own thread: a virtual thread where the runtime
+ * has them (Java 21 and later), and otherwise a platform thread from a cached pool.
+ */
+final class QueryServer {
+    /** The line that ends the answer to each command. */
+    static final String END_OF_ANSWER = ".";
+
+    /** The port to listen on. */
+    private final int port;
+
+    /** Creates: a server that will listen on port, on the loopback address only. */
+    QueryServer(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Effect: accept connections and answer their commands until the process ends.
+     * Throws an IOException if the port cannot be listened on.
+     */
+    void run() throws IOException {
+        ExecutorService connections = connectionExecutor();
+        try (ServerSocket server = new ServerSocket(port, 4096, InetAddress.getLoopbackAddress())) {
+            System.err.println("Serving on port " + server.getLocalPort());
+            while (true) {
+                Socket socket = server.accept();
+                connections.execute(() -> serve(socket));
+            }
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread if the runtime
+     * supports them, and otherwise on a pooled daemon thread.
+     */
+    private static ExecutorService connectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(null, r, "a4-query", 256 * 1024);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Effect: answer the commands read from socket until the client sends "exit" or
+     * closes the connection, then close socket. Answers are flushed only when no more
+     * commands are waiting, so pipelined commands share network writes.
+     */
+    private static void serve(Socket socket) {
+        try (socket;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+                Writer out = new BufferedWriter(
+                        new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+            socket.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cmd = Main.words(line);
+                String name = cmd[0].toLowerCase();
+                if (name.equals("exit")) break;
+                if (name.equals("print") && cmd.length > 1) {
+                    out.write("Invalid print command. The server does not write files."
+                            + System.lineSeparator());
+                } else {
+                    Main.execute(cmd, out);
+                }
+                out.write(END_OF_ANSWER + System.lineSeparator());
+                if (!in.ready()) out.flush();
+            }
+        } catch (IOException exc) {
+            // the client went away; nothing more to answer
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package a4;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of the results of queries on a whole PhDTree: lineages, common
+ * ancestors, and the toString of small subtrees. It evicts the least recently used
+ * entry once it holds more than a number of entries or of characters of toString.
+ *
+ * <p>Inserting a leaf changes no lineage or common ancestor of professors already in
+ * the tree, and only cached queries that found their professors are kept, so an
+ * insert evicts only the toString of each subtree that the new node joins: those of
+ * its advisor and the advisor's ancestors. The cache counts hits and misses of each
+ * kind of query, which bean() exposes through JMX. All methods are safe to call from
+ * several threads at once.
+ */
+final class ResultCache {
+    /** The kinds of query whose results are cached. */
+    enum Kind {
+        LINEAGE("lineage"),
+        ANCESTOR("ancestor"),
+        FIND("find");
+
+        /** The name of the kind as it is reported. */
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * The number of entries kept, initially given by the system property
+     * "a4.cache.entries", and 1024 if that is not set.
+     */
+    static final int ENTRIES = Integer.getInteger("a4.cache.entries", 1024);
+
+    /**
+     * The number of characters of toString kept, initially given by the system property
+     * "a4.cache.chars", and 4M if that is not set.
+     */
+    static final int CHARS = Integer.getInteger("a4.cache.chars", 1 << 22);
+
+    /** The size of the largest subtree whose toString is cached. */
+    static final int FIND_MAX_NODES = 4096;
+
+    /** The key of a cached result: a kind of query and the professors it is about. */
+    private static final class Key {
+        final Kind kind;
+        final Professor a;
+        final Professor b;
+
+        Key(Kind kind, Professor a, Professor b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return kind == k.kind && a.equals(k.a) && Objects.equals(b, k.b);
+        }
+
+        @Override
+        public int hashCode() {
+            return (kind.hashCode() * 31 + a.hashCode()) * 31 + Objects.hashCode(b);
+        }
+    }
+
+    /** The cached results, least recently used first. */
+    private final LinkedHashMap<Key, Object> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** The number of characters in the cached toStrings. */
+    private long chars;
+
+    /** The number of cached toStrings. */
+    private int finds;
+
+    /** The number of hits and of misses of each kind, by the ordinal of the kind. */
+    private final long[] hits = new long[Kind.values().length];
+    private final long[] misses = new long[Kind.values().length];
+
+    /** Returns the key of a query of kind about a, or about a and b in either order. */
+    private static Key key(Kind kind, Professor a, Professor b) {
+        if (b != null && a.compareTo(b) > 0) return new Key(kind, b, a);
+        return new Key(kind, a, b);
+    }
+
+    /** Returns the cached lineage of p, or null, counting a hit or a miss. */
+    @SuppressWarnings("unchecked")
+    synchronized List<Professor> lineage(Professor p) {
+        return (List<Professor>) get(Kind.LINEAGE, p, null);
+    }
+
+    /** Returns the cached common ancestor of p1 and p2, or null, counting a hit or a miss. */
+    synchronized Professor ancestor(Professor p1, Professor p2) {
+        return (Professor) get(Kind.ANCESTOR, p1, p2);
+    }
+
+    /** Returns the cached toString of the subtree of p, or null, counting a hit or a miss. */
+    synchronized String find(Professor p) {
+        return (String) get(Kind.FIND, p, null);
+    }
+
+    /** Returns the result cached for the query, or null, counting a hit or a miss. */
+    private Object get(Kind kind, Professor a, Professor b) {
+        Object result = entries.get(key(kind, a, b));
+        if (result == null) misses[kind.ordinal()]++;
+        else hits[kind.ordinal()]++;
+        return result;
+    }
+
+    /** Effect: cache lineage, which must not change, as the lineage of p. */
+    synchronized void putLineage(Professor p, List<Professor> lineage) {
+        put(key(Kind.LINEAGE, p, null), lineage);
+    }
+
+    /** Effect: cache ancestor as the common ancestor of p1 and p2. */
+    synchronized void putAncestor(Professor p1, Professor p2, Professor ancestor) {
+        put(key(Kind.ANCESTOR, p1, p2), ancestor);
+    }
+
+    /** Effect: cache s as the toString of the subtree of p, unless it is too long. */
+    synchronized void putFind(Professor p, String s) {
+        if (s.length() > CHARS / 8) return;
+        put(key(Kind.FIND, p, null), s);
+    }
+
+    /** Effect: cache value under k, then evict entries until the cache is within bounds. */
+    private void put(Key k, Object value) {
+        if (ENTRIES <= 0) return;
+        Object old = entries.put(k, value);
+        if (old != null) forget(k, old);
+        if (k.kind == Kind.FIND) {
+            chars += ((String) value).length();
+            finds++;
+        }
+        Iterator<Map.Entry<Key, Object>> eldest = entries.entrySet().iterator();
+        while (entries.size() > ENTRIES || chars > CHARS) {
+            Map.Entry<Key, Object> e = eldest.next();
+            eldest.remove();
+            forget(e.getKey(), e.getValue());
+        }
+    }
+
+    /** Effect: update the totals for the removal of value, cached under k. */
+    private void forget(Key k, Object value) {
+        if (k.kind == Kind.FIND) {
+            chars -= ((String) value).length();
+            finds--;
+        }
+    }
+
+    /**
+     * Effect: evict the results that an insert under advisor changes: the toString of
+     * the subtree of advisor and of each of its ancestors.
+     */
+    synchronized void inserted(PhDTree advisor) {
+        for (PhDTree n = advisor; n != null && finds > 0; n = n.advisor()) {
+            Key k = key(Kind.FIND, n.prof(), null);
+            Object old = entries.remove(k);
+            if (old != null) forget(k, old);
+        }
+    }
+
+    /** Effect: evict every entry. The counts of hits and misses are kept. */
+    synchronized void clear() {
+        entries.clear();
+        chars = 0;
+        finds = 0;
+    }
+
+    /** Returns the number of hits of queries of kind so far. */
+    synchronized long hits(Kind kind) {
+        return hits[kind.ordinal()];
+    }
+
+    /** Returns the number of misses of queries of kind so far. */
+    synchronized long misses(Kind kind) {
+        return misses[kind.ordinal()];
+    }
+
+    /** Returns the number of cached results. */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns a view through JMX of the cache that cache returns each time it is read,
+     * which may be a different one as the tree is replaced or the cache turned off and
+     * on, or null if results are not cached.
+     */
+    static Metrics.ResultCacheMXBean bean(Supplier<ResultCache> cache) {
+        return new Metrics.ResultCacheMXBean() {
+            @Override
+            public int getEntries() {
+                ResultCache c = cache.get();
+                return c == null ? 0 : c.size();
+            }
+
+            @Override
+            public Map<String, Long> getHits() {
+                return counts(cache.get(), true);
+            }
+
+            @Override
+            public Map<String, Long> getMisses() {
+                return counts(cache.get(), false);
+            }
+
+            @Override
+            public void clear() {
+                ResultCache c = cache.get();
+                if (c != null) c.clear();
+            }
+        };
+    }
+
+    /** Returns the hits, or else the misses, of c for each kind of query, by name. */
+    private static Map<String, Long> counts(ResultCache c, boolean hits) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Kind kind : Kind.values()) {
+            counts.put(kind.toString(), c == null ? 0 : hits ? c.hits(kind) : c.misses(kind));
+        }
+        return counts;
+    }
+
+    /** Returns a one-line report of the entries, hits and misses of the cache. */
+    synchronized String report() {
+        StringBuilder s = new StringBuilder("Result cache: entries=").append(entries.size())
+                .append(" chars=").append(chars);
+        for (Kind kind : Kind.values()) {
+            s.append(' ').append(kind).append(" hits=").append(hits[kind.ordinal()])
+                    .append(" misses=").append(misses[kind.ordinal()]);
+        }
+        return s.toString();
+    }
+}
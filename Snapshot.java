@@ -0,0 +1,418 @@
+package a4;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A PhDTree stored in a compact binary file that is memory-mapped when opened, so a
+ * large genealogy is available within milliseconds instead of being parsed again.
+ * Queries can be answered straight from the mapped file, or the file can be turned
+ * back into a PhDTree with toTree(). Opening a snapshot checks that its contents
+ * describe a tree, so a corrupt file is reported as an IOException instead of making
+ * a later query fail.
+ *
+ * <p>Nodes are numbered in breadth-first order with each node's advisees in order, so
+ * node 0 is the root and the advisees of a node are numbered consecutively. The file
+ * holds, as big-endian ints unless stated otherwise:
+ * <pre>
+ * MAGIC, VERSION, number of nodes n, number of names m, bytes of names b, table slots t
+ * int[m + 1]  offset of each name in the name bytes, and b
+ * byte[b]     the UTF-8 bytes of all names, padded with zeros to a multiple of 4
+ * int[n]      first name of each node, as a name number
+ * int[n]      last name of each node, as a name number
+ * int[n]      advisor of each node, -1 for the root
+ * int[n]      PhD year of each node
+ * int[n + 1]  first advisee of each node; node i's advisees are the nodes from
+ *             this number up to that of node i + 1
+ * int[n]      size of each node's subtree
+ * int[n]      height of each node's subtree
+ * int[n]      depth of each node
+ * int[t]      a hash table of nodes by name, holding node + 1, or 0 in an empty slot
+ * </pre>
+ */
+public final class Snapshot {
+    /** The first int of every snapshot file: "PHDT" in ASCII. */
+    public static final int MAGIC = 0x50484454;
+
+    /** The version of the file format written by this class. */
+    public static final int VERSION = 1;
+
+    /** The number of ints in the header of the file. */
+    private static final int HEADER_INTS = 6;
+
+    /** The number of nodes. */
+    private final int n;
+
+    /** The offset of each name in names, followed by the total length of names. */
+    private final IntBuffer nameOffsets;
+
+    /** The UTF-8 bytes of all names. */
+    private final ByteBuffer names;
+
+    /** The per-node arrays described in the class comment. */
+    private final IntBuffer first, last, parent, year, childStart, size, height, depth;
+
+    /** The hash table of nodes by name. Its size is a power of 2. */
+    private final IntBuffer table;
+
+    /** Creates: a view of the snapshot in buf. Throws IOException if buf is not one. */
+    private Snapshot(ByteBuffer buf) throws IOException {
+        if (buf.limit() < HEADER_INTS * 4 || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a PhDTree snapshot");
+        }
+        if (buf.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + buf.getInt(4));
+        }
+        n = buf.getInt(8);
+        int m = buf.getInt(12);
+        int b = buf.getInt(16);
+        int t = buf.getInt(20);
+        long expected = 4L * (HEADER_INTS + (m + 1) + 8L * n + 1 + t) + pad(b);
+        if (n < 1 || m < 0 || b < 0 || Integer.bitCount(t) != 1 || buf.limit() != expected) {
+            throw new IOException("Corrupt PhDTree snapshot");
+        }
+        int pos = HEADER_INTS * 4;
+        nameOffsets = ints(buf, pos, m + 1);
+        pos += 4 * (m + 1);
+        names = buf.duplicate().position(pos).limit(pos + b).slice();
+        pos += pad(b);
+        first = ints(buf, pos, n);
+        last = ints(buf, pos += 4 * n, n);
+        parent = ints(buf, pos += 4 * n, n);
+        year = ints(buf, pos += 4 * n, n);
+        childStart = ints(buf, pos += 4 * n, n + 1);
+        size = ints(buf, pos += 4 * (n + 1), n);
+        height = ints(buf, pos += 4 * n, n);
+        depth = ints(buf, pos += 4 * n, n);
+        table = ints(buf, pos + 4 * n, t);
+        validate(m, b);
+    }
+
+    /**
+     * Effect: check that the names and nodes of this snapshot, which has m names of b
+     * bytes in all, describe a tree in the order given in the class comment, and that
+     * the table finds every node by probing it with the node's name, as node() does.
+     * Throws an IOException if they do not.
+     */
+    private void validate(int m, int b) throws IOException {
+        if (nameOffsets.get(0) != 0 || nameOffsets.get(m) != b) throw corrupt("name offsets");
+        for (int id = 0; id < m; id++) {
+            if (nameOffsets.get(id) > nameOffsets.get(id + 1)) throw corrupt("name offsets");
+        }
+        if (parent.get(0) != -1 || depth.get(0) != 0 || childStart.get(0) != 1
+                || childStart.get(n) != n) {
+            throw corrupt("root");
+        }
+        for (int v = 0; v < n; v++) {
+            if (first.get(v) < 0 || first.get(v) >= m || last.get(v) < 0 || last.get(v) >= m) {
+                throw corrupt("name of node " + v);
+            }
+            if (v > 0 && (parent.get(v) < 0 || parent.get(v) >= v
+                    || depth.get(v) != depth.get(parent.get(v)) + 1)) {
+                throw corrupt("advisor of node " + v);
+            }
+            if (childStart.get(v) > childStart.get(v + 1)) throw corrupt("advisees of node " + v);
+        }
+        // children follow their parents, so each subtree is checked after its advisees
+        for (int v = n - 1; v >= 0; v--) {
+            long sz = 1;
+            int h = 0;
+            for (int c = childStart.get(v); c < childStart.get(v + 1); c++) {
+                if (parent.get(c) != v) throw corrupt("advisees of node " + v);
+                sz += size.get(c);
+                h = Math.max(h, height.get(c) + 1);
+            }
+            if (size.get(v) != sz || height.get(v) != h) throw corrupt("subtree of node " + v);
+        }
+        int used = 0;
+        for (int slot = 0; slot < table.limit(); slot++) {
+            int v = table.get(slot);
+            if (v < 0 || v > n) throw corrupt("name table");
+            if (v > 0) used++;
+        }
+        if (used != n || used == table.limit()) throw corrupt("name table");
+        // n nodes in n slots, so each node found is in a slot of its own
+        int[] nameHash = new int[m];
+        for (int id = 0; id < m; id++) nameHash[id] = nameHash(id);
+        int mask = table.limit() - 1;
+        for (int v = 0; v < n; v++) {
+            int h = nameHash[first.get(v)] * 31 + nameHash[last.get(v)];
+            int slot = (h ^ (h >>> 16)) & mask;
+            while (table.get(slot) != v + 1) {
+                if (table.get(slot) == 0) throw corrupt("name table entry of node " + v);
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    /**
+     * Returns the hash code of the name numbered id as a String, reading ASCII names
+     * straight from their bytes.
+     */
+    private int nameHash(int id) {
+        int from = nameOffsets.get(id);
+        int to = nameOffsets.get(id + 1);
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            byte c = names.get(i);
+            if (c < 0) return name(id).hashCode();
+            h = 31 * h + c;
+        }
+        return h;
+    }
+
+    /** Returns the IOException reporting that what is corrupt. */
+    private static IOException corrupt(String what) {
+        return new IOException("Corrupt PhDTree snapshot: bad " + what);
+    }
+
+    /** Returns the count ints of buf that start at byte pos, as an IntBuffer. */
+    private static IntBuffer ints(ByteBuffer buf, int pos, int count) {
+        return buf.duplicate().position(pos).limit(pos + 4 * count).slice().asIntBuffer();
+    }
+
+    /** Returns b rounded up to a multiple of 4. */
+    private static int pad(int b) {
+        return (b + 3) & ~3;
+    }
+
+    /** Returns the hash of the name first last, as stored in the table. */
+    private static int hash(String first, String last) {
+        int h = first.hashCode() * 31 + last.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Effect: write the subtree rooted at tree to the file named by filename, replacing
+     * it if it exists. Throws an IOException if the file cannot be written.
+     */
+    public static void write(PhDTree tree, String filename) throws IOException {
+        int n = tree.size();
+        PhDTree[] order = new PhDTree[n];
+        int[] parent = new int[n];
+        int[] childStart = new int[n + 1];
+        order[0] = tree;
+        parent[0] = -1;
+        int tail = 1;
+        for (int i = 0; i < n; i++) {
+            childStart[i] = tail;
+            for (PhDTree child : order[i].advisees()) {
+                parent[tail] = i;
+                order[tail++] = child;
+            }
+        }
+        childStart[n] = n;
+
+        Map<String, Integer> nameIds = new HashMap<>();
+        List<Integer> offsets = new ArrayList<>();
+        ByteArrayOutputStream nameBytes = new ByteArrayOutputStream();
+        int[] first = new int[n];
+        int[] last = new int[n];
+        for (int i = 0; i < n; i++) {
+            Professor p = order[i].prof();
+            first[i] = nameId(p.firstName(), nameIds, offsets, nameBytes);
+            last[i] = nameId(p.lastName(), nameIds, offsets, nameBytes);
+        }
+
+        int t = Integer.highestOneBit(Math.max(2 * n - 1, 1)) << 1;
+        int[] table = new int[t];
+        for (int i = 0; i < n; i++) {
+            Professor p = order[i].prof();
+            int slot = hash(p.firstName(), p.lastName()) & (t - 1);
+            while (table[slot] != 0) slot = (slot + 1) & (t - 1);
+            table[slot] = i + 1;
+        }
+
+        Path path = Path.of(filename);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            int b = nameBytes.size();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(offsets.size());
+            out.writeInt(b);
+            out.writeInt(t);
+            for (int off : offsets) out.writeInt(off);
+            out.writeInt(b);
+            nameBytes.writeTo(out);
+            for (int i = b; i < pad(b); i++) out.write(0);
+            for (int v : first) out.writeInt(v);
+            for (int v : last) out.writeInt(v);
+            for (int v : parent) out.writeInt(v);
+            for (PhDTree node : order) out.writeInt(node.phdYear());
+            for (int v : childStart) out.writeInt(v);
+            for (PhDTree node : order) out.writeInt(node.size());
+            for (PhDTree node : order) out.writeInt(node.maxDepth());
+            for (PhDTree node : order) out.writeInt(node.depth() - tree.depth());
+            for (int v : table) out.writeInt(v);
+        }
+    }
+
+    /**
+     * Returns the number that ids gives name, first adding name to ids, offsets and bytes
+     * if it is not there yet.
+     */
+    private static int nameId(String name, Map<String, Integer> ids, List<Integer> offsets,
+            ByteArrayOutputStream bytes) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = offsets.size();
+            ids.put(name, id);
+            offsets.add(bytes.size());
+            bytes.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    /**
+     * Returns a view of the snapshot in the file named by filename, mapped into memory.
+     * Throws an IOException if the file cannot be read or is not a snapshot.
+     */
+    public static Snapshot open(String filename) throws IOException {
+        try (FileChannel ch = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            if (ch.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot is too large to map");
+            }
+            return new Snapshot(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    /**
+     * Returns a new PhDTree with the same nodes as this snapshot. Each name is decoded
+     * once, however many professors share it, and each professor is canonical.
+     */
+    public PhDTree toTree() {
+        String[] decoded = new String[nameOffsets.limit() - 1];
+        PhDTree[] nodes = new PhDTree[n];
+        nodes[0] = new PhDTree(canonical(0, decoded), year.get(0));
+        for (int i = 1; i < n; i++) {
+            nodes[i] = nodes[parent.get(i)].attach(canonical(i, decoded), year.get(i));
+        }
+        nodes[0].refreshAggregates();
+        return nodes[0];
+    }
+
+    /** The number of nodes in this snapshot. */
+    public int size() {
+        return n;
+    }
+
+    /** Returns the node of p, or -1 if p is not in this snapshot. */
+    public int node(Professor p) {
+        byte[] f = p.firstName().getBytes(StandardCharsets.UTF_8);
+        byte[] l = p.lastName().getBytes(StandardCharsets.UTF_8);
+        int mask = table.limit() - 1;
+        for (int slot = hash(p.firstName(), p.lastName()) & mask; ; slot = (slot + 1) & mask) {
+            int v = table.get(slot) - 1;
+            if (v < 0) return -1;
+            if (nameEquals(first.get(v), f) && nameEquals(last.get(v), l)) return v;
+        }
+    }
+
+    /** Returns true if p is in this snapshot. */
+    public boolean contains(Professor p) {
+        return node(p) >= 0;
+    }
+
+    /**
+     * Returns the canonical Professor at node, taking the names already decoded from
+     * decoded, by number, and adding those it decodes.
+     */
+    private Professor canonical(int node, String[] decoded) {
+        int f = first.get(node);
+        int l = last.get(node);
+        if (decoded[f] == null) decoded[f] = name(f);
+        if (decoded[l] == null) decoded[l] = name(l);
+        return Professor.of(decoded[f], decoded[l]);
+    }
+
+    /** Returns the Professor at node. Requires: 0 <= node < size(). */
+    public Professor prof(int node) {
+        return new Professor(name(first.get(node)), name(last.get(node)));
+    }
+
+    /** Returns the PhD year of the Professor at node. Requires: 0 <= node < size(). */
+    public int phdYear(int node) {
+        return year.get(node);
+    }
+
+    /** Returns the advisor of node, or -1 if node is the root. Requires: 0 <= node < size(). */
+    public int advisor(int node) {
+        return parent.get(node);
+    }
+
+    /** Returns the number of advisees of node. Requires: 0 <= node < size(). */
+    public int numAdvisees(int node) {
+        return childStart.get(node + 1) - childStart.get(node);
+    }
+
+    /** Returns the number of nodes in the subtree rooted at node. Requires: 0 <= node < size(). */
+    public int size(int node) {
+        return size.get(node);
+    }
+
+    /** Returns the maximum depth of the subtree rooted at node. Requires: 0 <= node < size(). */
+    public int maxDepth(int node) {
+        return height.get(node);
+    }
+
+    /**
+     * Returns the path from the root to node.
+     * Requires: 0 <= node < size().
+     */
+    public List<Professor> lineage(int node) {
+        List<Professor> lineage = new ArrayList<>(depth.get(node) + 1);
+        for (int v = node; v >= 0; v = parent.get(v)) {
+            lineage.add(prof(v));
+        }
+        Collections.reverse(lineage);
+        return lineage;
+    }
+
+    /**
+     * Returns the root of the smallest subtree that contains nodes a and b.
+     * Requires: 0 <= a, b < size().
+     */
+    public int commonAncestor(int a, int b) {
+        while (depth.get(a) > depth.get(b)) a = parent.get(a);
+        while (depth.get(b) > depth.get(a)) b = parent.get(b);
+        while (a != b) {
+            a = parent.get(a);
+            b = parent.get(b);
+        }
+        return a;
+    }
+
+    /** Returns the name numbered id. */
+    private String name(int id) {
+        int from = nameOffsets.get(id);
+        byte[] bytes = new byte[nameOffsets.get(id + 1) - from];
+        names.get(from, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Returns true if the name numbered id has the UTF-8 encoding utf8. */
+    private boolean nameEquals(int id, byte[] utf8) {
+        int from = nameOffsets.get(id);
+        if (nameOffsets.get(id + 1) - from != utf8.length) return false;
+        for (int i = 0; i < utf8.length; i++) {
+            if (names.get(from + i) != utf8[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+package a4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index from each Professor in a PhDTree to the node holding them. One TreeIndex is
+ * shared by every node of the same tree, so a lookup from any subtree sees the whole tree.
+ *
+ * <p>The ancestor, year and name indexes are built when first needed and rebuilt when
+ * first needed after a change. Several threads may query the tree at once, so each
+ * of them is rebuilt under its own lock: one thread builds it while the others wait
+ * for it, instead of each building a copy.
+ */
+final class TreeIndex {
+    /** The node of each Professor in the tree. */
+    private final Map<Professor, PhDTree> nodes = new HashMap<>();
+
+    /** Every node in the tree, in the order they were added; a node's id is its position. */
+    private final List<PhDTree> byId = new ArrayList<>();
+
+    /** The number of changes made to the tree so far. */
+    private int modCount;
+
+    /** True if commonAncestor queries should go through the ancestor index. */
+    private boolean ancestorsEnabled;
+
+    /** The ancestor index, or null if it has not been built. It may be stale. */
+    private volatile AncestorIndex ancestors;
+
+    /** The year index, or null if it has not been built. It may be stale. */
+    private volatile YearIndex years;
+
+    /** The name index, or null if it has not been built. It may be stale. */
+    private volatile NameIndex names;
+
+    /** The locks held while building the ancestor, year and name indexes. */
+    private final Object ancestorsLock = new Object();
+    private final Object yearsLock = new Object();
+    private final Object namesLock = new Object();
+
+    /** The cache of query results, or null if results are not cached. */
+    private ResultCache cache;
+
+    /** Returns the node holding p, or null if p is not in the tree. */
+    PhDTree node(Professor p) {
+        return nodes.get(p);
+    }
+
+    /** Returns the node whose id is id. Requires: 0 <= id < size(). */
+    PhDTree node(int id) {
+        return byId.get(id);
+    }
+
+    /** Returns true if p is in the tree. */
+    boolean contains(Professor p) {
+        return nodes.containsKey(p);
+    }
+
+    /** Returns the number of nodes in the tree. */
+    int size() {
+        return nodes.size();
+    }
+
+    /** Returns the number of changes made to the tree so far. */
+    int modCount() {
+        return modCount;
+    }
+
+    /**
+     * Effect: record node as part of the tree and return its id.
+     * Requires: node's Professor is not already in the index.
+     */
+    int add(PhDTree node) {
+        assert !nodes.containsKey(node.prof());
+        nodes.put(node.prof(), node);
+        byId.add(node);
+        modCount++;
+        return byId.size() - 1;
+    }
+
+    /** Effect: choose whether commonAncestor queries go through the ancestor index. */
+    void useAncestors(boolean enabled) {
+        ancestorsEnabled = enabled;
+        if (!enabled) ancestors = null;
+    }
+
+    /**
+     * Returns an up-to-date ancestor index, building it if it is missing or stale.
+     * Returns null instead if the index is disabled and force is false.
+     */
+    AncestorIndex ancestors(boolean force) {
+        if (!ancestorsEnabled && !force) return null;
+        AncestorIndex a = ancestors;
+        if (a == null || a.modCount() != modCount) {
+            synchronized (ancestorsLock) {
+                a = ancestors;
+                if (a == null || a.modCount() != modCount) {
+                    a = new AncestorIndex(this);
+                    ancestors = a;
+                }
+            }
+        }
+        return a;
+    }
+
+    /** Effect: choose whether query results are cached, starting with an empty cache. */
+    void useCache(boolean enabled) {
+        cache = enabled ? new ResultCache() : null;
+    }
+
+    /** Returns the cache of query results, or null if results are not cached. */
+    ResultCache cache() {
+        return cache;
+    }
+
+    /** Returns an up-to-date year index, building it if it is missing or stale. */
+    YearIndex years() {
+        YearIndex y = years;
+        if (y == null || y.modCount() != modCount) {
+            synchronized (yearsLock) {
+                y = years;
+                if (y == null || y.modCount() != modCount) {
+                    y = new YearIndex(this);
+                    years = y;
+                }
+            }
+        }
+        return y;
+    }
+
+    /** Returns an up-to-date name index, building it if it is missing or stale. */
+    NameIndex names() {
+        NameIndex n = names;
+        if (n == null || n.modCount() != modCount) {
+            synchronized (namesLock) {
+                n = names;
+                if (n == null || n.modCount() != modCount) {
+                    n = new NameIndex(this);
+                    names = n;
+                }
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,519 @@
+package a4;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * A PhDTree whose inserts are made durable in a directory, so that the tree can be
+ * recovered after a crash. Each insert is appended to a write-ahead log before it
+ * returns; from time to time the whole tree is written as a Snapshot, called a
+ * checkpoint, and a new log is started. Recovery loads the latest checkpoint and
+ * replays the log written after it.
+ *
+ * <p>With group commit, an insert waits for the log to be forced to disk, but one
+ * FileChannel.force covers every insert appended by any thread up to that point: the
+ * first thread to wait writes and forces the records of all of them while the others
+ * wait for it. Without group commit, every insert forces the log by itself.
+ *
+ * <p>Generation g of the directory consists of "checkpoint-g.snap" and "wal-g.log",
+ * which holds the inserts made after the checkpoint. A new checkpoint is written
+ * under a temporary name and renamed into place, so the latest complete checkpoint is
+ * always the one with the highest generation. The log holds MAGIC and VERSION as
+ * big-endian ints, then one record per insert:
+ * <pre>
+ * int     n, the number of bytes of the payload
+ * int     CRC-32C of the payload
+ * byte[n] payload: the PhD year as an int, then the first and last name of the
+ *         advisor and of the advisee, each as an unsigned short length and UTF-8 bytes
+ * </pre>
+ * A record cut short by a crash, or that fails its checksum, ends the log; recovery
+ * truncates the log there.
+ */
+public final class WriteAheadLog implements Closeable {
+    /** The first int of every log file: "PHDW" in ASCII. */
+    public static final int MAGIC = 0x50484457;
+
+    /** The version of the log format written by this class. */
+    public static final int VERSION = 1;
+
+    /** The number of bytes of the header of a log file. */
+    private static final int HEADER_BYTES = 8;
+
+    /** The number of inserts after which a checkpoint is written, unless told otherwise. */
+    public static final int DEFAULT_CHECKPOINT_EVERY = 1 << 20;
+
+    /** The directory holding the checkpoints and logs. */
+    private final Path dir;
+
+    /** Whether inserts share the forcing of the log. */
+    private final boolean groupCommit;
+
+    /** The number of inserts after which a checkpoint is written. */
+    private final int checkpointEvery;
+
+    /** The tree. */
+    private final PhDTree tree;
+
+    /** The current generation. */
+    private long generation;
+
+    /** The log of the current generation. */
+    private FileChannel log;
+
+    /** The records appended but not yet written to the log. */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+
+    /** A buffer to swap with pending while pending is written, or null if in use. */
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+
+    /** The number of records appended so far. */
+    private long appended;
+
+    /** The number of records appended so far that are known to be on disk. */
+    private long durable;
+
+    /** True while a thread is writing and forcing records outside the lock. */
+    private boolean flushing;
+
+    /** The number of records in the log of the current generation. */
+    private int logged;
+
+    /** The first failure to write the log, after which nothing more is written. */
+    private IOException failure;
+
+    /** The number of records replayed by recovery. */
+    private int replayed;
+
+    /** The time recovery took, in nanoseconds. */
+    private long recoveryNanos;
+
+    /** The number of times the log has been forced. */
+    private long forces;
+
+    private WriteAheadLog(Path dir, PhDTree tree, long generation, boolean groupCommit,
+            int checkpointEvery) {
+        this.dir = dir;
+        this.tree = tree;
+        this.generation = generation;
+        this.groupCommit = groupCommit;
+        this.checkpointEvery = checkpointEvery;
+    }
+
+    /**
+     * Returns a log in the directory named by directory, creating the directory if
+     * needed, whose first checkpoint is tree. Later inserts must go through the log.
+     * Throws an IOException if the directory already holds a checkpoint or cannot be
+     * written. Requires: checkpointEvery >= 1.
+     */
+    public static WriteAheadLog create(String directory, PhDTree tree, boolean groupCommit,
+            int checkpointEvery) throws IOException {
+        Path dir = Path.of(directory);
+        Files.createDirectories(dir);
+        if (latestGeneration(dir) >= 0) {
+            throw new IOException("The directory " + dir + " already holds a checkpoint");
+        }
+        WriteAheadLog wal = new WriteAheadLog(dir, tree, 0, groupCommit, checkpointEvery);
+        writeCheckpoint(dir, 0, tree);
+        wal.log = newLog(dir, 0);
+        return wal;
+    }
+
+    /**
+     * Returns the log in the directory named by directory, recovering its tree from the
+     * latest checkpoint and the log after it. Truncates the log after its last complete
+     * record, and deletes the files of earlier generations.
+     * Throws an IOException if the directory holds no checkpoint or cannot be read.
+     * Requires: checkpointEvery >= 1.
+     */
+    public static WriteAheadLog open(String directory, boolean groupCommit, int checkpointEvery)
+            throws IOException {
+        long start = System.nanoTime();
+        Path dir = Path.of(directory);
+        long g = latestGeneration(dir);
+        if (g < 0) {
+            throw new IOException("The directory " + dir + " holds no checkpoint");
+        }
+        PhDTree tree = Snapshot.open(checkpoint(dir, g).toString()).toTree();
+        WriteAheadLog wal = new WriteAheadLog(dir, tree, g, groupCommit, checkpointEvery);
+        Path logPath = logFile(dir, g);
+        if (Files.exists(logPath)) {
+            wal.log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long end = wal.replay();
+            if (end < HEADER_BYTES) {
+                wal.log.close();
+                wal.log = newLog(dir, g);
+            } else {
+                wal.log.truncate(end);
+                wal.log.position(end);
+                wal.log.force(true);
+            }
+        } else {
+            wal.log = newLog(dir, g);
+        }
+        deleteOlder(dir, g);
+        wal.recoveryNanos = System.nanoTime() - start;
+        return wal;
+    }
+
+    /** Returns the tree. It must only be changed through insert. */
+    public PhDTree tree() {
+        return tree;
+    }
+
+    /** Returns the number of inserts replayed from the log when this was opened. */
+    public int replayed() {
+        return replayed;
+    }
+
+    /** Returns the time taken to recover the tree when this was opened, in nanoseconds. */
+    public long recoveryNanos() {
+        return recoveryNanos;
+    }
+
+    /** Returns the number of times the log has been forced to disk. */
+    public synchronized long forces() {
+        return forces;
+    }
+
+    /**
+     * Effect: insert advisee, who received their PhD in year, as an advisee of advisor
+     * in the tree, and log it. Returns once the insert is on disk. Returns false, and
+     * changes and logs nothing, if advisor is not in the tree or advisee already is.
+     * Writes a checkpoint after every checkpointEvery inserts. May be called from
+     * several threads at once. Throws an IOException if the log cannot be written, or
+     * could not be before; the insert is then in the tree but may not be on disk.
+     */
+    public boolean insert(Professor advisor, Professor advisee, int year) throws IOException {
+        long seq;
+        boolean full;
+        synchronized (this) {
+            if (failure != null) throw new IOException("The log failed earlier", failure);
+            if (!tree.contains(advisor) || tree.contains(advisee)) return false;
+            append(advisor, advisee, year);
+            tree.insert(advisor, advisee, year);
+            seq = appended;
+            full = ++logged >= checkpointEvery;
+            if (!groupCommit) {
+                flush();
+            }
+        }
+        if (groupCommit) awaitDurable(seq);
+        if (full) {
+            synchronized (this) {
+                if (logged >= checkpointEvery) checkpoint();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Effect: write the tree as the checkpoint of a new generation, start its log, and
+     * delete the files of the old generation. Inserts wait meanwhile.
+     * Throws an IOException if the files cannot be written.
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (failure != null) throw new IOException("The log failed earlier", failure);
+        awaitIdle();
+        long next = generation + 1;
+        writeCheckpoint(dir, next, tree);
+        FileChannel old = log;
+        log = newLog(dir, next);
+        old.close();
+        generation = next;
+        deleteOlder(dir, next);
+        pending.clear();
+        logged = 0;
+        durable = appended;
+        notifyAll();
+    }
+
+    /**
+     * Effect: write and force the records not yet on disk, and close the log.
+     * Throws an IOException if they cannot be written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        awaitIdle();
+        try {
+            if (failure == null && pending.position() > 0) flush();
+        } finally {
+            log.close();
+        }
+    }
+
+    /** Effect: wait until no thread is writing records outside the lock. */
+    private void awaitIdle() throws InterruptedIOException {
+        while (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /** Effect: append the record of an insert to pending. */
+    private void append(Professor advisor, Professor advisee, int year) {
+        byte[][] names = {
+            advisor.firstName().getBytes(StandardCharsets.UTF_8),
+            advisor.lastName().getBytes(StandardCharsets.UTF_8),
+            advisee.firstName().getBytes(StandardCharsets.UTF_8),
+            advisee.lastName().getBytes(StandardCharsets.UTF_8)};
+        int n = 4;
+        for (byte[] name : names) {
+            if (name.length > 0xFFFF) throw new IllegalArgumentException("name too long");
+            n += 2 + name.length;
+        }
+        if (pending.remaining() < 8 + n) {
+            ByteBuffer bigger =
+                    ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + 8 + n));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        int start = pending.position();
+        pending.putInt(n).putInt(0).putInt(year);
+        for (byte[] name : names) {
+            pending.putShort((short) name.length).put(name);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(pending.array(), start + 8, n);
+        pending.putInt(start + 4, (int) crc.getValue());
+        appended++;
+    }
+
+    /**
+     * Effect: write pending to the log and force it, holding the lock throughout.
+     * Throws an IOException if that fails, after which the log is not written again.
+     */
+    private void flush() throws IOException {
+        try {
+            pending.flip();
+            while (pending.hasRemaining()) log.write(pending);
+            log.force(false);
+            forces++;
+            pending.clear();
+            durable = appended;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /**
+     * Effect: wait until record number seq is on disk, writing and forcing the records
+     * of every thread if no other thread is doing so already.
+     * Throws an IOException if the log cannot be written.
+     */
+    private void awaitDurable(long seq) throws IOException {
+        ByteBuffer batch;
+        long upTo;
+        FileChannel ch;
+        synchronized (this) {
+            while (durable < seq && flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure != null) throw new IOException("The log failed earlier", failure);
+            if (durable >= seq) return;
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            spare = null;
+            upTo = appended;
+            ch = log;
+        }
+        IOException error = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) ch.write(batch);
+            ch.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            flushing = false;
+            spare = batch.clear();
+            if (error == null) {
+                durable = Math.max(durable, upTo);
+                forces++;
+            } else {
+                failure = error;
+            }
+            notifyAll();
+        }
+        if (error != null) throw error;
+    }
+
+    /**
+     * Effect: apply the complete records of the log to the tree, from the start.
+     * Returns the position just after the last complete record.
+     * Throws an IOException if the log cannot be read or has the wrong header.
+     */
+    private long replay() throws IOException {
+        log.position(0);
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(log), 1 << 16));
+        long pos;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid log format");
+            }
+        } catch (EOFException e) {
+            return 0; // cut short while its header was written
+        }
+        pos = HEADER_BYTES;
+        CRC32C crc = new CRC32C();
+        byte[] payload = new byte[256];
+        while (true) {
+            int n;
+            int sum;
+            try {
+                n = in.readInt();
+                sum = in.readInt();
+                if (n < 12 || n > 4 + 4 * (2 + 0xFFFF)) break;
+                if (payload.length < n) payload = new byte[Math.max(n, 2 * payload.length)];
+                in.readFully(payload, 0, n);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload, 0, n);
+            if ((int) crc.getValue() != sum) break;
+            ByteBuffer b = ByteBuffer.wrap(payload, 0, n);
+            int year = b.getInt();
+            Professor advisor = new Professor(name(b), name(b));
+            Professor advisee = new Professor(name(b), name(b));
+            if (tree.contains(advisor) && !tree.contains(advisee)) {
+                tree.insert(advisor, advisee, year);
+                replayed++;
+            }
+            pos += 8 + n;
+            logged++;
+        }
+        return pos;
+    }
+
+    /** Returns the name at the position of b, as the log stores it, and moves past it. */
+    private static String name(ByteBuffer b) {
+        int len = Short.toUnsignedInt(b.getShort());
+        String s = new String(b.array(), b.position(), len, StandardCharsets.UTF_8);
+        b.position(b.position() + len);
+        return s;
+    }
+
+    /** Returns the checkpoint file of generation g in dir. */
+    private static Path checkpoint(Path dir, long g) {
+        return dir.resolve("checkpoint-" + g + ".snap");
+    }
+
+    /** Returns the log file of generation g in dir. */
+    private static Path logFile(Path dir, long g) {
+        return dir.resolve("wal-" + g + ".log");
+    }
+
+    /**
+     * Returns the generation named by file if it is a checkpoint or log, or -1.
+     * With checkpoints true, only checkpoints count.
+     */
+    private static long generationOf(Path file, boolean checkpoints) {
+        String name = file.getFileName().toString();
+        String digits;
+        if (name.startsWith("checkpoint-") && name.endsWith(".snap")) {
+            digits = name.substring(11, name.length() - 5);
+        } else if (!checkpoints && name.startsWith("wal-") && name.endsWith(".log")) {
+            digits = name.substring(4, name.length() - 4);
+        } else {
+            return -1;
+        }
+        if (digits.isEmpty() || digits.length() > 18
+                || !digits.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Long.parseLong(digits);
+    }
+
+    /** Returns the highest generation of a checkpoint in dir, or -1 if there is none. */
+    private static long latestGeneration(Path dir) throws IOException {
+        long latest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                latest = Math.max(latest, generationOf(f, true));
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Effect: delete the checkpoints and logs of dir from generations before g, and
+     * any checkpoint left half-written.
+     */
+    private static void deleteOlder(Path dir, long g) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                long h = generationOf(f, false);
+                if ((h >= 0 && h < g) || f.getFileName().toString().endsWith(".snap.tmp")) {
+                    Files.deleteIfExists(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Effect: write tree as the checkpoint of generation g in dir: first under a
+     * temporary name, forced to disk, then renamed into place.
+     */
+    private static void writeCheckpoint(Path dir, long g, PhDTree tree) throws IOException {
+        Path tmp = dir.resolve("checkpoint-" + g + ".snap.tmp");
+        Snapshot.write(tree, tmp.toString());
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        Files.move(tmp, checkpoint(dir, g), StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(dir);
+    }
+
+    /** Returns the new, empty log of generation g in dir, with its header on disk. */
+    private static FileChannel newLog(Path dir, long g) throws IOException {
+        FileChannel ch = FileChannel.open(logFile(dir, g), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+        header.flip();
+        while (header.hasRemaining()) ch.write(header);
+        ch.force(true);
+        forceDirectory(dir);
+        return ch;
+    }
+
+    /**
+     * Effect: force the entries of dir to disk, so that files created or renamed in it
+     * survive a crash, where the platform allows it.
+     */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // not every platform can open a directory; the rename is still atomic
+        }
+    }
+}
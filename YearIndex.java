@@ -0,0 +1,207 @@
+package a4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An index of the PhD years of all nodes of a PhDTree, for queries over a subtree and
+ * a range of years. Nodes are numbered in pre-order, so the subtree of a node is a
+ * contiguous range of positions, and a query over a subtree and a range of years is
+ * a query over a rectangle of (position, year) points.
+ *
+ * <p>Counting uses a wavelet matrix over the years in pre-order, which takes time
+ * logarithmic in the number of distinct years. Listing uses, for each distinct year,
+ * the sorted positions of the nodes with that year, so the nodes of one year in a
+ * subtree are found by two binary searches. A YearIndex describes the tree as it was
+ * when built; it does not follow inserts.
+ */
+final class YearIndex {
+    /** The modCount of the tree index when this was built. */
+    private final int modCount;
+
+    /** The position of each node, by id. */
+    private final int[] pos;
+
+    /** The node at each position. */
+    private final PhDTree[] nodes;
+
+    /** The distinct years, in increasing order. */
+    private final int[] years;
+
+    /**
+     * The positions of the nodes of each year: those of years[y] are
+     * byYear[yearStart[y]] to byYear[yearStart[y + 1] - 1], in increasing order.
+     */
+    private final int[] byYear, yearStart;
+
+    /** The wavelet matrix: one bit vector per bit of a year's number, top bit first. */
+    private final long[][] bits;
+
+    /** ranks[l][w] is the number of 1s in bits[l] before word w. */
+    private final int[][] ranks;
+
+    /** zeros[l] is the number of 0s in bits[l]. */
+    private final int[] zeros;
+
+    /** Creates: the index of every node currently in index. */
+    YearIndex(TreeIndex index) {
+        modCount = index.modCount();
+        int n = index.size();
+        pos = new int[n];
+        nodes = new PhDTree[n];
+        int p = 0;
+        for (PhDTree node : index.node(0).preOrder()) {
+            pos[node.id()] = p;
+            nodes[p++] = node;
+        }
+
+        int[] sorted = new int[n];
+        for (int i = 0; i < n; i++) sorted[i] = nodes[i].phdYear();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) sorted[distinct++] = sorted[i];
+        }
+        years = Arrays.copyOf(sorted, distinct);
+
+        // positions grouped by year; scanning positions in order keeps each group sorted
+        int[] value = new int[n];
+        yearStart = new int[distinct + 1];
+        for (int i = 0; i < n; i++) {
+            value[i] = Arrays.binarySearch(years, nodes[i].phdYear());
+            yearStart[value[i] + 1]++;
+        }
+        for (int y = 0; y < distinct; y++) yearStart[y + 1] += yearStart[y];
+        byYear = new int[n];
+        int[] fill = Arrays.copyOf(yearStart, distinct);
+        for (int i = 0; i < n; i++) byYear[fill[value[i]]++] = i;
+
+        int levels = Math.max(1, 32 - Integer.numberOfLeadingZeros(distinct - 1));
+        bits = new long[levels][];
+        ranks = new int[levels][];
+        zeros = new int[levels];
+        int[] next = new int[n];
+        for (int l = 0; l < levels; l++) {
+            int bit = levels - 1 - l;
+            long[] b = new long[(n >>> 6) + 1];
+            int z = 0;
+            for (int i = 0; i < n; i++) {
+                if (((value[i] >>> bit) & 1) != 0) b[i >>> 6] |= 1L << i;
+                else z++;
+            }
+            int[] r = new int[b.length + 1];
+            for (int w = 0; w < b.length; w++) r[w + 1] = r[w] + Long.bitCount(b[w]);
+            bits[l] = b;
+            ranks[l] = r;
+            zeros[l] = z;
+            int zi = 0;
+            int oi = z;
+            for (int i = 0; i < n; i++) {
+                if (((value[i] >>> bit) & 1) != 0) next[oi++] = value[i];
+                else next[zi++] = value[i];
+            }
+            int[] t = value;
+            value = next;
+            next = t;
+        }
+    }
+
+    /** Returns the modCount of the tree index when this was built. */
+    int modCount() {
+        return modCount;
+    }
+
+    /** Returns the number of 1s in bits[l] before position i. */
+    private int rank1(int l, int i) {
+        return ranks[l][i >>> 6] + Long.bitCount(bits[l][i >>> 6] & ((1L << i) - 1));
+    }
+
+    /** Returns the number of positions in [from, to) whose year number is below x. */
+    private int countBelow(int from, int to, int x) {
+        int levels = bits.length;
+        if (x >= 1 << levels) return to - from;
+        int count = 0;
+        for (int l = 0; l < levels && from < to; l++) {
+            int f1 = rank1(l, from);
+            int t1 = rank1(l, to);
+            if (((x >>> (levels - 1 - l)) & 1) != 0) {
+                count += (to - from) - (t1 - f1);
+                from = zeros[l] + f1;
+                to = zeros[l] + t1;
+            } else {
+                from -= f1;
+                to -= t1;
+            }
+        }
+        return count;
+    }
+
+    /** Returns the number of the first distinct year that is at least year. */
+    private int yearAtLeast(int year) {
+        int i = Arrays.binarySearch(years, year);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Returns the number of nodes in the subtree rooted at root whose PhD year is from
+     * to to, inclusive, which is 0 if from > to. Any ints are allowed as from and to.
+     * Requires: root was in the tree when this index was built.
+     */
+    int count(PhDTree root, int from, int to) {
+        if (from > to) return 0;
+        int start = pos[root.id()];
+        int end = start + root.size();
+        // to + 1 would wrap around to the smallest int
+        int above = to == Integer.MAX_VALUE ? years.length : yearAtLeast(to + 1);
+        return countBelow(start, end, above) - countBelow(start, end, yearAtLeast(from));
+    }
+
+    /**
+     * Returns the nodes in the subtree rooted at root whose PhD year is from to to,
+     * inclusive, by year and then in pre-order; none if from > to. Any ints are allowed
+     * as from and to. Requires: root was in the tree when this index was built.
+     */
+    List<PhDTree> list(PhDTree root, int from, int to) {
+        List<PhDTree> result = new ArrayList<>();
+        if (from > to) return result;
+        int start = pos[root.id()];
+        int end = start + root.size();
+        for (int y = yearAtLeast(from); y < years.length && years[y] <= to; y++) {
+            int lo = lowerBound(byYear, yearStart[y], yearStart[y + 1], start);
+            int hi = lowerBound(byYear, lo, yearStart[y + 1], end);
+            for (int i = lo; i < hi; i++) {
+                result.add(nodes[byYear[i]]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of nodes of each PhD year in the subtree rooted at root, for
+     * the years that have any. Requires: root was in the tree when this index was built.
+     */
+    SortedMap<Integer, Integer> cohorts(PhDTree root) {
+        SortedMap<Integer, Integer> result = new TreeMap<>();
+        int start = pos[root.id()];
+        int end = start + root.size();
+        for (int y = 0; y < years.length; y++) {
+            int lo = lowerBound(byYear, yearStart[y], yearStart[y + 1], start);
+            int hi = lowerBound(byYear, lo, yearStart[y + 1], end);
+            if (hi > lo) result.put(years[y], hi - lo);
+        }
+        return result;
+    }
+
+    /** Returns the first index in a[from..to-1] whose element is at least key, or to. */
+    private static int lowerBound(int[] a, int from, int to, int key) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (a[mid] < key) from = mid + 1;
+            else to = mid;
+        }
+        return from;
+    }
+}